@@ -8,24 +8,36 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.bouncycastle.util.encoders.Base64;
+import javax.crypto.Cipher;
 
 import cli.Command;
 import cli.Shell;
-import common.CipherInputStream;
-import common.CipherOutputStream;
+import common.CompressedInputStream;
+import common.CompressedOutputStream;
+import common.Compression;
+import common.DirectCipherInputStream;
+import common.DirectCipherOutputStream;
+import common.DTOInputStream;
+import common.DTOOutputStream;
+import common.Features;
+import common.HandshakeModes;
+import common.RecordInputStream;
+import common.RecordOutputStream;
+import common.X25519;
 import nameserver.INameserver;
 import nameserver.INameserverForChatserver;
+import org.bouncycastle.util.encoders.Base64;
+
 import util.Config;
+import util.CryptoContext;
 import util.Keys;
 import util.SecurityUtils;
+import util.ThreadPools;
 
 public class Chatserver implements IChatserverCli, Runnable {
 	private final Shell shell;
@@ -36,16 +48,38 @@ public class Chatserver implements IChatserverCli, Runnable {
 	private final String rootID;
 	private final File keyDir;
 	private final File keyFile;
-	private final Set<User> users = Collections.synchronizedSet(new HashSet<User>());
+	private final String ioMode;
+	private final int ioThreads;
+	private final int ioPending;
+	private final int udpThreads;
+	private final HandshakeStage handshakes;
+	private final Tickets tickets;
+	private final Set<String> modes;
+	private final Set<String> features;
+	private final int outboxCapacity;
+	private final Outbox.Policy outboxPolicy;
+	private final long outboxTimeout;
+	private final int outboxBatch;
+	private final long outboxLinger;
+	private final Outbox.Stats outboxes = new Outbox.Stats();
+	private final int compressionThreshold;
+	private final Compression.Stats compression = new Compression.Stats();
+	private final UserDirectory directory = new UserDirectory();
+	private final Presence presence = new Presence();
+	private final Rooms rooms = new Rooms();
+	private final ZoneCache zones = new ZoneCache(this);
+	private final ResolverCache resolver;
 
 	private ServerSocket serverSocket;
-	private DatagramSocket datagramSocket;
+	private NioServer nioServer;
+	private UdpServer udpServer;
 
-	private Thread udpThread;
+	private ExecutorService threadPool;
 
-	private ExecutorService threadPool = Executors.newCachedThreadPool();
-
-	private PrivateKey privateKey;
+	private CryptoContext crypto;
+	private KeyPair agreementKey;
+	private String agreementKeySignature;
+	private PublicKeyCache publicKeys;
 
 	private INameserverForChatserver rootNameserver;
 
@@ -61,6 +95,8 @@ public class Chatserver implements IChatserverCli, Runnable {
 	 */
 	public Chatserver(String componentName, Config config, InputStream userRequestStream,
 			PrintStream userResponseStream) {
+		SecurityUtils.configureProviders(config);
+
 		tcpPort = config.getInt("tcp.port");
 		udpPort = config.getInt("udp.port");
 		regHost = config.getString("registry.host");
@@ -69,12 +105,85 @@ public class Chatserver implements IChatserverCli, Runnable {
 		keyDir = new File(config.getString("keys.dir"));
 		keyFile = new File(config.getString("key"));
 
+		// Either "blocking", to serve every client on a thread of its own,
+		// or "nio", to serve all clients on a few event loops.
+		ioMode = config.getString("io.mode", "blocking");
+		ioThreads = config.getInt("io.threads", Runtime.getRuntime().availableProcessors());
+
+		// In nio mode, outboxes stop writing to a client once this many
+		// bytes wait to be sent to it, so that the outbox policy applies.
+		ioPending = config.getInt("io.pending", 256 * 1024);
+
+		// Workers answering !list datagrams.
+		udpThreads = config.getInt("udp.threads", 2);
+
+		// Threads that run blocking sessions and drain outboxes, either
+		// "platform" or "virtual".
+		threadPool = ThreadPools.newTaskExecutor(config.getString("executor.mode", ThreadPools.PLATFORM));
+
+		// Handshakes run on handshake.threads threads, at most
+		// handshake.queue more wait, and each has handshake.timeout
+		// milliseconds to complete. Blocking handshakes spend most of their
+		// time waiting for the client, so there are more threads than
+		// processors by default.
+		handshakes = new HandshakeStage(config.getInt("handshake.threads", 16),
+				config.getInt("handshake.queue", 64), config.getInt("handshake.timeout", 10000));
+
+		// How long clients may resume their session without a full
+		// handshake, in seconds.
+		tickets = new Tickets(TimeUnit.SECONDS.toMillis(config.getInt("ticket.lifetime", 3600)));
+
+		// Handshake modes to accept, see HandshakeModes.
+		modes = Features.parse(config.getString("handshake.modes", HandshakeModes.SUPPORTED));
+
+		// Protocol features to accept if a client offers them.
+		features = Features.parse(config.getString("handshake.features", Features.SUPPORTED));
+
+		// How many DTOs to queue for a client before outboxPolicy kicks in,
+		// which is one of "drop-oldest", "disconnect" or "block". Senders
+		// are blocked for at most outbox.timeout milliseconds.
+		outboxCapacity = config.getInt("outbox.capacity", 256);
+		outboxPolicy = Outbox.Policy.parse(config.getString("outbox.policy", "drop-oldest"));
+		outboxTimeout = config.getInt("outbox.timeout", 1000);
+
+		// Outboxes flush after at most outbox.batch DTOs, and wait up to
+		// outbox.linger microseconds for more before flushing a smaller
+		// batch.
+		outboxBatch = config.getInt("outbox.batch", 64);
+		outboxLinger = config.getInt("outbox.linger", 0);
+
+		// With the deflate feature, messages shorter than this many bytes
+		// are still sent raw.
+		compressionThreshold = config.getInt("compression.threshold", Compression.DEFAULT_THRESHOLD);
+
+		// Resolutions of user names are kept for resolver.ttl milliseconds,
+		// or resolver.negative-ttl if the user is unknown, and at most
+		// resolver.size of them.
+		resolver = new ResolverCache(zones, config.getInt("resolver.ttl", 30000), config.getInt("resolver.negative-ttl",
+				5000), config.getInt("resolver.size", 1024));
+
 		shell = new Shell(componentName, userRequestStream, userResponseStream);
 		shell.register(this);
 	}
 
-	public Set<User> getUsers() {
-		return users;
+	public UserDirectory getDirectory() {
+		return directory;
+	}
+
+	public Presence getPresence() {
+		return presence;
+	}
+
+	public Rooms getRooms() {
+		return rooms;
+	}
+
+	ResolverCache getResolver() {
+		return resolver;
+	}
+
+	ZoneCache getZones() {
+		return zones;
 	}
 
 	public INameserverForChatserver getRootNameserver() {
@@ -85,6 +194,93 @@ public class Chatserver implements IChatserverCli, Runnable {
 		return shell;
 	}
 
+	Set<String> getFeatures() {
+		return features;
+	}
+
+	/**
+	 * @return how many bytes may wait to be written to a client in nio mode
+	 */
+	int getMaxPending() {
+		return ioPending;
+	}
+
+	/**
+	 * @return the threads that run blocking sessions and drain outboxes
+	 */
+	Executor getThreadPool() {
+		return threadPool;
+	}
+
+	/**
+	 * @return {@code true} if delivering a message may block the sender, see
+	 *         {@link Outbox.Policy#BLOCK}
+	 */
+	boolean isDeliveryBlocking() {
+		return outboxPolicy == Outbox.Policy.BLOCK;
+	}
+
+	Outbox newOutbox(Session session) {
+		return new Outbox(session, threadPool, outboxCapacity, outboxPolicy, outboxTimeout, outboxBatch, outboxLinger,
+				outboxes);
+	}
+
+	/**
+	 * @return a compressor for the messages to one client
+	 */
+	Compression.Compressor newCompressor() {
+		return new Compression.Compressor(compressionThreshold, compression);
+	}
+
+	/**
+	 * @return a decompressor for the messages from one client
+	 */
+	Compression.Decompressor newDecompressor() {
+		return new Compression.Decompressor(compression);
+	}
+
+	HandshakeStage getHandshakes() {
+		return handshakes;
+	}
+
+	Set<String> getModes() {
+		return modes;
+	}
+
+	/**
+	 * @return our X25519 key pair, generated at startup
+	 */
+	KeyPair getAgreementKey() {
+		return agreementKey;
+	}
+
+	/**
+	 * @return the signature of our X25519 public key, made with our RSA key
+	 */
+	String getAgreementKeySignature() {
+		return agreementKeySignature;
+	}
+
+	Tickets getTickets() {
+		return tickets;
+	}
+
+	CryptoContext getCrypto() {
+		return crypto;
+	}
+
+	User findUser(String username) {
+		return directory.get(username);
+	}
+
+	PublicKey readPublicKey(String username) throws IOException {
+		PublicKey key = publicKeys.get(username);
+		if (key == null) {
+			throw new IOException("No public key for " + username + ".");
+		}
+		return key;
+	}
+
 	private void initRootNameserver() {
 		Registry registry = null;
 		try {
@@ -102,32 +298,44 @@ public class Chatserver implements IChatserverCli, Runnable {
 
 	private void initKeys() {
 		try {
-			privateKey = Keys.readPrivatePEM(keyFile);
+			crypto = new CryptoContext(Keys.readPrivatePEM(keyFile));
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 
-		File[] keys = keyDir.listFiles(new FileFilter() {
-			@Override
-			public boolean accept(File pathname) {
-				// The server will find it's own public key. To avoid that,
-				// derive the name of the public key from the name of the
-				// private key.
-				// This purely relies on convention.
-				if (pathname.equals(new File(keyFile.getPath().replaceFirst("\\.pem$", ".pub.pem")))) {
-					return false;
-				}
-				if (!pathname.getName().endsWith(".pub.pem")) {
-					return false;
-				}
-				return !pathname.isDirectory();
-			}
-		});
+		// Sign the X25519 key once, so that X25519 handshakes need no
+		// private RSA operation on our side.
+		try {
+			agreementKey = X25519.generateKeyPair();
+			agreementKeySignature = new String(Base64.encode(crypto.sign(X25519.serverKeyStatement(X25519
+					.encode(agreementKey.getPublic())))));
+		} catch (GeneralSecurityException | RuntimeException e) {
+			System.err.println("Could not set up X25519, only accepting other modes.");
+			modes.remove(HandshakeModes.X25519);
+		}
+
+		publicKeys = new PublicKeyCache(keyDir, new File(keyFile.getPath().replaceFirst("\\.pem$", ".pub.pem")),
+				new PublicKeyCache.Listener() {
+					@Override
+					public void added(String username) {
+						directory.add(new User(username, presence));
+					}
+
+					@Override
+					public void removed(String username) {
+						directory.remove(username);
+					}
+				});
 
-		for (File file : keys) {
-			users.add(new User(file.getName().substring(0, file.getName().length() - ".pub.pem".length())));
+		try {
+			publicKeys.load();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
 		}
+
+		new Thread(publicKeys, "key-watcher").start();
 	}
 
 	@Override
@@ -138,7 +346,11 @@ public class Chatserver implements IChatserverCli, Runnable {
 		initKeys();
 
 		try {
-			this.serverSocket = new ServerSocket(tcpPort);
+			if (ioMode.equals("nio")) {
+				this.nioServer = new NioServer(this, tcpPort, ioThreads);
+			} else {
+				this.serverSocket = new ServerSocket(tcpPort);
+			}
 		} catch (IOException e) {
 			System.err.println("Error creating TCP ServerSocket on port: " + tcpPort);
 			try {
@@ -149,7 +361,7 @@ public class Chatserver implements IChatserverCli, Runnable {
 		}
 
 		try {
-			this.datagramSocket = new DatagramSocket(udpPort);
+			this.udpServer = new UdpServer(this, udpPort, udpThreads);
 		} catch (IOException e) {
 			System.err.println("Error creating UDP DatagramSocket on port: " + udpPort);
 			try {
@@ -159,44 +371,55 @@ public class Chatserver implements IChatserverCli, Runnable {
 			}
 		}
 
-		udpThread = new Thread(new UDPThread());
-		udpThread.start();
+		if (udpServer != null) {
+			udpServer.start();
+		}
+
+		if (nioServer != null) {
+			// Returns once the server is closed.
+			nioServer.run();
+			return;
+		}
 
 		while (true) {
 			try {
 				final Socket socket = serverSocket.accept();
-				Thread handler = new Thread() {
+				final long deadline = handshakes.deadline();
+				boolean admitted = handshakes.submit(new Runnable() {
 					@Override
 					public void run() {
-						setName("handle-" + socket.toString());
+						Session session = null;
 
 						try {
-							Session session = null;
-
+							session = shakeHands(socket, deadline);
+						} catch (SocketTimeoutException e) {
+							handshakes.timedOut();
+						} catch (IOException ignored) {
+							// Somebody bothered us with a failed attempt to
+							// shake hands. Maybe block the source if this
+							// happens too often.
+							handshakes.failed();
 							try {
-								session = shakeHands(socket);
-							} catch (IOException ignored) {
-								// Somebody bothered us with a failed attempt to
-								// shake hands. Maybe block the source if this
-								// happens too often.
 								shell.writeLine("Shaking hands with " + socket.toString() + " failed.");
+							} catch (IOException e) {
 							}
+						}
 
-							if (session == null) {
-								try {
-									socket.close();
-								} catch (IOException ignored) {
-								}
+						if (session == null) {
+							try {
+								socket.close();
+							} catch (IOException ignored) {
 							}
-
-							session.talk();
-						} catch (IOException e) {
-							throw new RuntimeException();
+							return;
 						}
+
+						talk(socket, session);
 					}
-				};
+				});
 
-				threadPool.execute(handler);
+				if (!admitted) {
+					socket.close();
+				}
 			} catch (IOException e) {
 				// Return if the serverSocket raised an IOE on accept(),
 				// which is also the case when it's closed.
@@ -205,12 +428,30 @@ public class Chatserver implements IChatserverCli, Runnable {
 		}
 	}
 
+	/**
+	 * Hands an established session over to the session threads.
+	 */
+	private void talk(final Socket socket, final Session session) {
+		try {
+			threadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					Thread.currentThread().setName("handle-" + socket.toString());
+					session.talk();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down.
+			session.close();
+		}
+	}
+
 	@Override
 	@Command
 	public String users() throws IOException {
 		StringBuilder sb = new StringBuilder();
 		int i = 0;
-		for (User user : users) {
+		for (User user : directory.getUsers()) {
 			sb.append(++i + ". ");
 			sb.append(user.getName());
 			sb.append(" o");
@@ -220,203 +461,162 @@ public class Chatserver implements IChatserverCli, Runnable {
 		return sb.toString();
 	}
 
-	private Session shakeHands(Socket socket) throws IOException {
-		InputStream is = socket.getInputStream();
-		OutputStream os = socket.getOutputStream();
-
-		// Prepare asymmetric cipher to receive challenge from client.
-		Cipher cipher = null;
-		try {
-			cipher = Cipher.getInstance(SecurityUtils.ASYMMETRIC_SPEC);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * Lists the rooms with at least one member.
+	 */
+	@Command
+	public String rooms() {
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		for (Map.Entry<String, Integer> room : rooms.getSizes().entrySet()) {
+			sb.append(++i + ". " + room.getKey() + ": " + room.getValue() + " members\n");
 		}
+		return sb.length() == 0 ? "No rooms." : sb.toString();
+	}
 
-		// Use servers private key to decrypt, as the client will have
-		// encrypted the first message using the public key it has associated
-		// with the server.
-		try {
-			cipher.init(Cipher.DECRYPT_MODE, privateKey);
-		} catch (InvalidKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * Lists on how many devices every user is logged in.
+	 */
+	@Command
+	public String devices() {
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		for (User user : directory.getUsers()) {
+			sb.append(String.format("%d. %s: %d active, at most %d, %d logins%n", ++i, user.getName(),
+					user.getDevices(), user.getPeakDevices(), user.getLogins()));
 		}
+		return sb.toString();
+	}
 
-		// Receive first message.
-		byte[] message = new byte[684];
-		int messageLen = is.read(message);
-		// Decode and decrypt first message.
-		message = Base64.decode(Arrays.copyOfRange(message, 0, messageLen));
-		try {
-			message = cipher.doFinal(message);
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * @param deadline
+	 *            in terms of {@link System#nanoTime()}
+	 * @throws SocketTimeoutException
+	 *             if the client did not complete the handshake in time
+	 */
+	private Session shakeHands(Socket socket, long deadline) throws IOException {
+		InputStream is = socket.getInputStream();
+		OutputStream os = socket.getOutputStream();
 
-		// Extract parameters from first message.
-		String[] params = new String(message).split("\\s");
+		Handshake handshake = new Handshake(this);
 
-		if (params == null || params.length != 3 || !params[0].equals("!authenticate")) {
-			// Error out of this, because message 1 is malformed.
-			return null;
+		// Lines ask to resume a session or to use another mode. If we turn
+		// one down, the client goes on with its next mode.
+		byte[] first = readFully(socket, is, 1, deadline);
+		while (HandshakeModes.isLine(first[0])) {
+			byte[] reply = handshake.receiveLine(readLine(socket, is, first, deadline));
+			if (reply == null) {
+				handshakes.failed();
+				return null;
+			}
+			os.write(reply);
+			if (handshake.isKeyAgreed() || handshake.getFirstMessage() != null) {
+				break;
+			}
+			first = readFully(socket, is, 1, deadline);
 		}
 
-		String username = params[1];
-
-		User user = null;
-		for (User u : users) {
-			if (!u.getName().equals(username)) {
-				continue;
+		if (!handshake.isKeyAgreed()) {
+			// Receive first message, unless a line carried it, and answer
+			// with the second.
+			byte[] message = handshake.getFirstMessage();
+			if (message == null) {
+				byte[] rest = readFully(socket, is, handshake.firstMessageLength() - 1, deadline);
+				message = new byte[1 + rest.length];
+				message[0] = first[0];
+				System.arraycopy(rest, 0, message, 1, rest.length);
 			}
 
-			user = u;
+			message = handshake.receiveFirst(message);
+			if (message == null) {
+				handshakes.failed();
+				return null;
+			}
+			os.write(message);
 		}
 
-		if (user == null) {
-			System.err.println("Unknown user " + username + " tried to authenticate.");
+		// Receive third message and check the challenge.
+		byte[] third = handshake.isThirdLine() ? readLine(socket, is, readFully(socket, is, 1, deadline), deadline)
+				: readFully(socket, is, handshake.thirdMessageLength(), deadline);
+		if (!handshake.receiveThird(third)) {
+			handshakes.failed();
 			return null;
 		}
-
-		String challenge = SecurityUtils.randomBytesEncoded(32);
-
-		byte[] secret = SecurityUtils.randomBytes(256 / 8);
-		byte[] iv = SecurityUtils.randomBytes(16);
-
-		message = ("!ok " + params[2] + " " + // Here we return the client
-												// challenge.
-		challenge + " " + new String(Base64.encode(secret)) + " " + new String(Base64.encode(iv))).getBytes();
-
-		PublicKey publicKey = Keys.readPublicPEM(new File(keyDir, username + ".pub.pem"));
-
-		// Use user's public key to encrypt.
-		try {
-			cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-		} catch (InvalidKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		// Encrypt and encode second message.
-		try {
-			message = Base64.encode(cipher.doFinal(message));
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		// Send second message.
-		os.write(message);
-
-		// Set up symmetric cipher, as from now on we'll use a symmetric scheme.
-		try {
-			cipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		try {
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
-		} catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		// Receive third message.
-		message = new byte[1024];
-		messageLen = is.read(message);
-
-		// Decode and decrypt third message.
-		message = Base64.decode(Arrays.copyOfRange(message, 0, messageLen));
-		try {
-			message = cipher.doFinal(message);
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		// Check challenge.
-		if (!new String(message).equals(challenge)) {
-			return null;
+		socket.setSoTimeout(0);
+		handshakes.completed(handshake.getMode(), handshake.getBusyTime());
+
+		// The cipher streams write in pieces, and outboxes write several DTOs
+		// before flushing, all of which should go out in one write.
+		os = new BufferedOutputStream(os, 8192);
+
+		if (handshake.getFeatures().contains(Features.GCM)) {
+			os = new RecordOutputStream(os, handshake.newRecordCipher(Cipher.ENCRYPT_MODE));
+			is = new RecordInputStream(is, handshake.newRecordCipher(Cipher.DECRYPT_MODE));
+		} else {
+			os = new DirectCipherOutputStream(os, handshake.newCipher(Cipher.ENCRYPT_MODE));
+			is = new DirectCipherInputStream(is, handshake.newCipher(Cipher.DECRYPT_MODE));
 		}
 
-		Cipher encryptionCipher = null;
-		try {
-			encryptionCipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (handshake.getFeatures().contains(Features.DEFLATE)) {
+			os = new CompressedOutputStream(os, newCompressor());
+			is = new CompressedInputStream(is, newDecompressor());
 		}
 
-		try {
-			encryptionCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
-		} catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		ObjectOutput oos;
+		ObjectInput ois;
+		if (handshake.getFeatures().contains(Features.BINARY)) {
+			oos = new DTOOutputStream(os);
+			ois = new DTOInputStream(is);
+		} else {
+			oos = new ObjectOutputStream(os);
+			// Records are only sent on flush, and the peer waits for our
+			// header before it reads anything.
+			oos.flush();
+			ois = new ObjectInputStream(is);
 		}
 
-		ObjectOutputStream oos = new ObjectOutputStream(new CipherOutputStream(os, cipher));
-		ObjectInputStream ois = new ObjectInputStream(new CipherInputStream(is, encryptionCipher));
-
-		shell.writeLine("Successfully authenticated " + username);
+		User user = handshake.getUser();
+		shell.writeLine("Successfully authenticated " + user.getName());
 
-		Session session = new Session(this, user, ois, oos);
+		Session session = new Session(this, user, ois, oos, socket);
 		user.addSession(session);
 		return session;
 	}
 
-	private class UDPThread implements Runnable {
-		public void run() {
-			byte[] buffer;
-			String message;
-
-			while (!Thread.currentThread().isInterrupted()) {
-				buffer = new byte[1024];
-				try {
-					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-					datagramSocket.receive(packet);
-					message = new String(packet.getData(), packet.getOffset(), packet.getLength());
-
-					if (!message.equals("!list")) {
-						continue;
-					}
-
-					ArrayList<String> onlineList = new ArrayList<String>(users.size());
-					for (User user : users) {
-						if (!user.isOnline()) {
-							continue;
-						}
-						onlineList.add(user.getName());
-					}
-
-					if (onlineList.isEmpty()) {
-						message = "No online users.";
-					} else {
-						Collections.sort(onlineList);
-
-						message = "Online users:\n";
-						for (String u : onlineList) {
-							message += "* " + u + "\n";
-						}
-					}
+	/**
+	 * Reads up to and including the next newline.
+	 *
+	 * @param start
+	 *            the bytes of the line that were already read
+	 */
+	private static byte[] readLine(Socket socket, InputStream is, byte[] start, long deadline) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(HandshakeModes.MAX_LINE_LENGTH);
+		line.write(start);
+		while (start[start.length - 1] != '\n') {
+			if (line.size() >= HandshakeModes.MAX_LINE_LENGTH) {
+				throw new IOException("Line too long.");
+			}
+			// The client waits for our reply, so it is safe to read ahead a
+			// byte at a time.
+			start = readFully(socket, is, 1, deadline);
+			line.write(start);
+		}
+		return line.toByteArray();
+	}
 
-					InetAddress address = packet.getAddress();
-					int port = packet.getPort();
-					buffer = message.getBytes();
-					packet = new DatagramPacket(buffer, buffer.length, address, port);
-					datagramSocket.send(packet);
-				} catch (IOException se) {
-					try {
-						shell.writeLine("UDP listening thread is going down.");
-					} catch (IOException ignored) {}
-					if (datagramSocket != null) {
-						datagramSocket.close();
-					}
-				}
+	private static byte[] readFully(Socket socket, InputStream is, int n, long deadline) throws IOException {
+		byte[] b = new byte[n];
+		for (int off = 0, read; off < n; off += read) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("Handshake timed out.");
+			}
+			socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+			if ((read = is.read(b, off, n - off)) == -1) {
+				throw new EOFException();
 			}
 		}
+		return b;
 	}
 
 	@Override
@@ -431,26 +631,28 @@ public class Chatserver implements IChatserverCli, Runnable {
 			serverSocket = null;
 		}
 
+		if (nioServer != null) {
+			nioServer.close();
+			nioServer = null;
+		}
+
+		handshakes.shutdown();
+
+		if (publicKeys != null) {
+			publicKeys.close();
+		}
+
 		// Attempt to shut down all sessions.
 		if (threadPool != null) {
 			threadPool.shutdownNow();
 			threadPool = null;
 		}
 
-		// Close datagramSocket to interrupt udpThread if
-		// it is currently blocking on receive. This will
-		// likely raise an IOException (also upon further
-		// attempts to receive).
-		if (datagramSocket != null) {
-			datagramSocket.close();
-			datagramSocket = null;
-		}
-
-		// If closing datagramSocket has not brought down
-		// udpThread by now, interrupt it.
-		if (udpThread != null && udpThread.isAlive()) {
-			udpThread.interrupt();
-			udpThread = null;
+		// Closing the channel wakes up all UDP workers
+		// blocking on receive.
+		if (udpServer != null) {
+			udpServer.close();
+			udpServer = null;
 		}
 
 		if (shell != null) {
@@ -460,6 +662,61 @@ public class Chatserver implements IChatserverCli, Runnable {
 		return "Shutdown completed!";
 	}
 
+	/**
+	 * Registers the addresses of all users that registered one with the
+	 * nameservers again in a single call, e.g. after the nameservers were
+	 * restarted.
+	 */
+	@Command
+	public String reregister() {
+		Map<String, String> addresses = new HashMap<>();
+		for (User user : directory.getUsers()) {
+			if (user.getAddress() != null) {
+				addresses.put(user.getName(), user.getAddress());
+			}
+		}
+		if (addresses.isEmpty()) {
+			return "No addresses to register.";
+		}
+
+		Map<String, Exception> errors;
+		try {
+			errors = rootNameserver.registerUsers(addresses);
+		} catch (RemoteException e) {
+			return "Could not register addresses: " + e.getMessage();
+		}
+		for (String name : addresses.keySet()) {
+			resolver.invalidate(name);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Registered " + (addresses.size() - errors.size()) + " of " + addresses.size() + " addresses.");
+		for (Map.Entry<String, Exception> error : new TreeMap<>(errors).entrySet()) {
+			sb.append(String.format("%n%s: %s", error.getKey(), error.getValue().getMessage()));
+		}
+		return sb.toString();
+	}
+
+	@Command
+	public String handshakes() {
+		return handshakes.toString();
+	}
+
+	@Command
+	public String cache() {
+		return resolver + String.format("%n") + zones;
+	}
+
+	@Command
+	public String outboxes() {
+		return outboxes.toString();
+	}
+
+	@Command
+	public String compression() {
+		return compression.toString();
+	}
+
 	/**
 	 * @param args
 	 *            the first argument is the name of the {@link Chatserver}
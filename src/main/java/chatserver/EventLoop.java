@@ -0,0 +1,123 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A single thread multiplexing many channels with one {@link Selector}.
+ * <p/>
+ * Everything touching the channels registered with a loop happens on the
+ * loop's thread. Other threads hand over work using {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable, Executor {
+	/**
+	 * Attached to every {@link SelectionKey} of a loop.
+	 */
+	interface Handler {
+		void ready(SelectionKey key) throws IOException;
+
+		void close();
+	}
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// Shared by all connections of this loop, as reads never outlive a
+	// single call to ready().
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+	private volatile Thread thread;
+	private volatile boolean running = true;
+
+	EventLoop() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	ByteBuffer getReadBuffer() {
+		return readBuffer;
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+
+		try {
+			while (running) {
+				// Tasks queued by the loop itself do not wake up the selector.
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+
+				for (Runnable task; (task = tasks.poll()) != null;) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						// A failing task must not take the other connections
+						// of this loop down with it.
+						e.printStackTrace();
+					}
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					Handler handler = (Handler) key.attachment();
+					try {
+						if (key.isValid()) {
+							handler.ready(key);
+						}
+					} catch (IOException e) {
+						handler.close();
+					} catch (RuntimeException e) {
+						// Only the connection that ran into it is affected.
+						e.printStackTrace();
+						handler.close();
+					}
+				}
+			}
+		} catch (IOException ignored) {
+		} finally {
+			// Closing the selector deregisters all channels, but leaves
+			// them open, so close the connections first.
+			for (SelectionKey key : new ArrayList<>(selector.keys())) {
+				((Handler) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	void close() {
+		running = false;
+		selector.wakeup();
+	}
+}
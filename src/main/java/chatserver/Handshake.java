@@ -0,0 +1,388 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import common.Features;
+import common.HandshakeModes;
+import common.RecordCipher;
+import common.Resumption;
+import common.X25519;
+import util.CryptoContext;
+import util.SecurityUtils;
+
+/**
+ * Server side of the three-message handshake.
+ * <p/>
+ * Keeps the state between receiving the first and the third message, so that
+ * the handshake can be driven by a blocking socket as well as by an event
+ * loop that only calls in once enough bytes have arrived. Instead of the
+ * first message, a client may send a line to use another mode or to offer
+ * several, see {@link HandshakeModes}.
+ */
+class Handshake {
+	private final Chatserver server;
+
+	private User user;
+	private String challenge;
+	private byte[] secret;
+	private byte[] iv;
+	private Set<String> features = Collections.emptySet();
+	private String mode = null;
+	private byte[] transcript;
+	private byte[] firstMessage;
+	private long busy = 0;
+
+	Handshake(Chatserver server) {
+		this.server = server;
+	}
+
+	/**
+	 * @return the number of bytes that make up the first message, i.e. the
+	 *         length of a Base64 encoded block for the server's RSA key
+	 */
+	int firstMessageLength() {
+		return base64Length((((RSAKey) server.getCrypto().getPrivateKey()).getModulus().bitLength() + 7) / 8);
+	}
+
+	/**
+	 * @return the number of bytes that make up the third message, only known
+	 *         after the first message was processed
+	 */
+	int thirdMessageLength() {
+		return base64Length(challenge.length());
+	}
+
+	/**
+	 * Decrypts the first message and computes the second one.
+	 *
+	 * @return the encrypted and encoded second message, or {@code null} if the
+	 *         first message is malformed or names an unknown user, or if
+	 *         {@link HandshakeModes#RSA} is disabled
+	 */
+	byte[] receiveFirst(byte[] message) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return first(message);
+		} finally {
+			busy += System.nanoTime() - start;
+		}
+	}
+
+	private byte[] first(byte[] message) throws IOException {
+		if (!server.getModes().contains(HandshakeModes.RSA)) {
+			return null;
+		}
+
+		String[] params;
+		try {
+			params = new String(server.getCrypto().decrypt(Base64.decode(message))).split("\\s");
+		} catch (GeneralSecurityException | RuntimeException e) {
+			throw new IOException("Could not decrypt first message.", e);
+		}
+
+		// An optional fourth parameter lists the features the client
+		// supports.
+		if (params.length < 3 || params.length > 4 || !params[0].equals("!authenticate")) {
+			// Error out of this, because message 1 is malformed.
+			return null;
+		}
+
+		String username = params[1];
+
+		user = server.findUser(username);
+
+		if (user == null) {
+			System.err.println("Unknown user " + username + " tried to authenticate.");
+			return null;
+		}
+
+		challenge = SecurityUtils.randomBytesEncoded(32);
+		secret = SecurityUtils.randomBytes(256 / 8);
+		iv = SecurityUtils.randomBytes(16);
+
+		// Here we return the client challenge.
+		String reply = "!ok " + params[2] + " " + challenge + " " + new String(Base64.encode(secret)) + " "
+				+ new String(Base64.encode(iv));
+
+		if (params.length == 4) {
+			features = Features.negotiate(Features.parse(params[3]), server.getFeatures());
+			reply += " " + Features.format(features);
+		}
+
+		PublicKey publicKey = server.readPublicKey(username);
+
+		// Use user's public key to encrypt.
+		try {
+			if (features.contains(Features.RESUME)) {
+				reply += " " + server.getTickets().issue(username, Resumption.resumptionSecret(secret));
+			}
+			byte[] second = Base64.encode(CryptoContext.encrypt(publicKey, reply.getBytes()));
+			return firstMessage == null ? second : toLine(new String(second, StandardCharsets.US_ASCII));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not encrypt second message.", e);
+		}
+	}
+
+	/**
+	 * Handles a line that takes the place of the first message, asking to
+	 * resume a session or to agree on a key in another mode.
+	 *
+	 * @return the reply, which is {@link HandshakeModes#RETRY} if we do not
+	 *         accept the mode or the ticket, see {@link #isKeyAgreed()}, empty
+	 *         if the line carries a first message, see
+	 *         {@link #getFirstMessage()}, or {@code null} if the line is
+	 *         malformed or names an unknown user
+	 */
+	byte[] receiveLine(byte[] line) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return line(line);
+		} finally {
+			busy += System.nanoTime() - start;
+		}
+	}
+
+	private byte[] line(byte[] line) throws IOException {
+		String[] params = new String(line, StandardCharsets.UTF_8).trim().split(" ");
+		if (params[0].equals(Resumption.RESUME)) {
+			return receiveResume(params);
+		}
+		if (params[0].equals(HandshakeModes.HELLO)) {
+			return receiveHello(params);
+		}
+		if (params[0].equals(X25519.HELLO) && server.getModes().contains(HandshakeModes.X25519)) {
+			return receiveX25519(params);
+		}
+		return retry();
+	}
+
+	private byte[] receiveResume(String[] params) throws IOException {
+		if (params.length != 4) {
+			return null;
+		}
+
+		Tickets.Ticket ticket = server.getTickets().open(params[1]);
+		user = ticket == null ? null : server.findUser(ticket.username);
+		if (user == null) {
+			return retry();
+		}
+
+		String clientNonce = params[2];
+		challenge = SecurityUtils.randomBytesEncoded(32);
+		features = Features.negotiate(Features.parse(params[3]), server.getFeatures());
+
+		try {
+			secret = Resumption.sessionKey(ticket.secret, clientNonce, challenge);
+			iv = Resumption.sessionIv(ticket.secret, clientNonce, challenge);
+
+			String format = Features.format(features);
+			String next = server.getTickets().issue(user.getName(), Resumption.resumptionSecret(secret));
+			String proof = new String(Base64.encode(Resumption.proof(ticket.secret, clientNonce, challenge, format, next)));
+
+			mode = HandshakeModes.RESUME;
+			return toLine("!ok " + challenge + " " + format + " " + next + " " + proof);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not resume session.", e);
+		}
+	}
+
+	private byte[] receiveHello(String[] params) throws IOException {
+		if (params.length != 7) {
+			return null;
+		}
+
+		// Our order of preference decides among the modes the client offers.
+		Set<String> offered = Features.parse(params[1]);
+		for (String mode : server.getModes()) {
+			if (!offered.contains(mode)) {
+				continue;
+			}
+			if (mode.equals(HandshakeModes.X25519) && !params[3].equals(HandshakeModes.ABSENT)) {
+				return receiveX25519(new String[] { X25519.HELLO, params[2], params[3], params[4], params[5] });
+			}
+			if (mode.equals(HandshakeModes.RSA) && !params[6].equals(HandshakeModes.ABSENT)) {
+				firstMessage = params[6].getBytes(StandardCharsets.US_ASCII);
+				return new byte[0];
+			}
+		}
+		return retry();
+	}
+
+	private byte[] receiveX25519(String[] params) throws IOException {
+		if (params.length != 5) {
+			return null;
+		}
+
+		String username = params[1];
+		user = server.findUser(username);
+		if (user == null) {
+			System.err.println("Unknown user " + username + " tried to authenticate.");
+			return null;
+		}
+
+		String clientKey = params[2];
+		String clientNonce = params[3];
+		challenge = SecurityUtils.randomBytesEncoded(32);
+		features = Features.negotiate(Features.parse(params[4]), server.getFeatures());
+
+		String serverKey = X25519.encode(server.getAgreementKey().getPublic());
+		String format = Features.format(features);
+
+		try {
+			byte[] shared = X25519.agree(server.getAgreementKey().getPrivate(), X25519.decode(clientKey));
+			secret = X25519.sessionKey(shared, clientNonce, challenge);
+			iv = X25519.sessionIv(shared, clientNonce, challenge);
+
+			transcript = X25519.transcript(username, clientKey, clientNonce, params[4], serverKey, challenge, format);
+
+			String reply = "!ok " + serverKey + " " + server.getAgreementKeySignature() + " " + challenge + " " + format;
+			if (features.contains(Features.RESUME)) {
+				reply += " " + server.getTickets().issue(username, Resumption.resumptionSecret(secret));
+			}
+
+			mode = HandshakeModes.X25519;
+			return toLine(reply);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not agree on a key.", e);
+		}
+	}
+
+	/**
+	 * @return the first message of {@link HandshakeModes#RSA} if a line
+	 *         offering several modes carried it and we picked that mode, in
+	 *         which case it is up to the caller to pass it on to
+	 *         {@link #receiveFirst(byte[])}, or {@code null}
+	 */
+	byte[] getFirstMessage() {
+		return firstMessage;
+	}
+
+	/**
+	 * @return {@code true} once a line was accepted, in which case the third
+	 *         message follows
+	 */
+	boolean isKeyAgreed() {
+		return mode != null;
+	}
+
+	/**
+	 * @return {@code true} if the third message is a line, as in
+	 *         {@link HandshakeModes#X25519} mode, rather than of
+	 *         {@link #thirdMessageLength()}
+	 */
+	boolean isThirdLine() {
+		return HandshakeModes.X25519.equals(mode);
+	}
+
+	/**
+	 * @return the mode of the handshake, which is {@link HandshakeModes#RSA}
+	 *         unless a line was accepted
+	 */
+	String getMode() {
+		return mode == null ? HandshakeModes.RSA : mode;
+	}
+
+	private static byte[] retry() {
+		return toLine(HandshakeModes.RETRY);
+	}
+
+	private static byte[] toLine(String s) {
+		return (s + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Checks whether the third message carries our challenge.
+	 *
+	 * @return {@code true} if the client proved possession of the session key
+	 */
+	boolean receiveThird(byte[] message) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return third(message);
+		} finally {
+			busy += System.nanoTime() - start;
+		}
+	}
+
+	private boolean third(byte[] message) throws IOException {
+		if (isThirdLine()) {
+			// The client signs the transcript, proving it is who it claims
+			// to be, followed by the usual third message.
+			String[] params = new String(message, StandardCharsets.US_ASCII).trim().split(" ");
+			try {
+				if (params.length != 2 || !CryptoContext.verify(server.readPublicKey(user.getName()), transcript,
+						Base64.decode(params[0]))) {
+					return false;
+				}
+			} catch (GeneralSecurityException | RuntimeException e) {
+				throw new IOException("Could not verify signature.", e);
+			}
+			message = params[1].getBytes(StandardCharsets.US_ASCII);
+		}
+
+		try {
+			return Arrays.equals(CryptoContext.symmetric(Cipher.DECRYPT_MODE, secret, iv, Base64.decode(message)),
+					challenge.getBytes());
+		} catch (GeneralSecurityException | RuntimeException e) {
+			throw new IOException("Could not decrypt third message.", e);
+		}
+	}
+
+	/**
+	 * @return a fresh symmetric cipher for the session channel in the given
+	 *         mode
+	 */
+	Cipher newCipher(int mode) throws IOException {
+		try {
+			return CryptoContext.newSymmetricCipher(mode, secret, iv);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not set up symmetric cipher.", e);
+		}
+	}
+
+	/**
+	 * @return the cipher for the records of the session channel in the given
+	 *         mode, if {@link Features#GCM} was agreed on
+	 */
+	RecordCipher newRecordCipher(int mode) throws IOException {
+		try {
+			// We send records as the server and receive them from the client.
+			return new RecordCipher(mode, secret, mode == Cipher.DECRYPT_MODE);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not set up record cipher.", e);
+		}
+	}
+
+	/**
+	 * @return the time spent processing messages so far in nanoseconds
+	 */
+	long getBusyTime() {
+		return busy;
+	}
+
+	User getUser() {
+		return user;
+	}
+
+	/**
+	 * @return the features agreed on with the client
+	 */
+	Set<String> getFeatures() {
+		return features;
+	}
+
+	private static int base64Length(int n) {
+		return 4 * ((n + 2) / 3);
+	}
+}
@@ -0,0 +1,173 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the expensive part of handshakes on a fixed number of threads with a
+ * bounded queue, apart from established sessions.
+ * <p/>
+ * Handshakes that do not fit into the queue are rejected right away, and
+ * every handshake has to complete within a deadline. This way a burst of
+ * logins, or of connections that never finish their handshake, cannot tie up
+ * more than a few threads.
+ */
+class HandshakeStage {
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor timer;
+	private final long timeout;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final ConcurrentMap<String, Meter> modes = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param threads
+	 *            how many handshakes to run at once
+	 * @param queue
+	 *            how many handshakes may wait for a thread
+	 * @param timeout
+	 *            the time a client has to complete the handshake in
+	 *            milliseconds, starting when the connection is accepted
+	 */
+	HandshakeStage(int threads, int queue, long timeout) {
+		threads = Math.max(1, threads);
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queue)));
+		this.executor.allowCoreThreadTimeOut(true);
+		this.timer = new ScheduledThreadPoolExecutor(1);
+		this.timer.setRemoveOnCancelPolicy(true);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return {@code false} if the handshake was rejected, because the queue
+	 *         is full or the stage was shut down
+	 */
+	boolean submit(Runnable handshake) {
+		try {
+			executor.execute(handshake);
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the point in time, in terms of {@link System#nanoTime()}, by
+	 *         which a handshake starting now has to be completed
+	 */
+	long deadline() {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+	/**
+	 * Runs the given task once the deadline for a handshake starting now has
+	 * passed, unless the returned future is cancelled before.
+	 */
+	ScheduledFuture<?> onDeadline(Runnable task) {
+		return timer.schedule(task, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param mode
+	 *            the mode of the handshake, see {@link Handshake#getMode()}
+	 * @param busy
+	 *            the time spent processing its messages in nanoseconds
+	 */
+	void completed(String mode, long busy) {
+		completed.incrementAndGet();
+
+		Meter meter = modes.get(mode);
+		if (meter == null) {
+			modes.putIfAbsent(mode, new Meter());
+			meter = modes.get(mode);
+		}
+		meter.mark(busy);
+	}
+
+	void failed() {
+		failed.incrementAndGet();
+	}
+
+	void timedOut() {
+		timedOut.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Meter> entry : modes.entrySet()) {
+			sb.append("Handshakes in mode ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+		}
+
+		return "Handshakes completed: " + completed.get() + "\n"
+				+ sb
+				+ "Handshakes failed: " + failed.get() + "\n"
+				+ "Handshakes rejected: " + rejected.get() + "\n"
+				+ "Handshakes timed out: " + timedOut.get() + "\n"
+				+ "Handshakes running: " + executor.getActiveCount() + "\n"
+				+ "Handshakes queued: " + executor.getQueue().size() + "\n";
+	}
+
+	/**
+	 * Counts handshakes of one mode, both in total and over the last few
+	 * seconds to tell the current rate.
+	 */
+	private static final class Meter {
+		private static final int WINDOW = 10;
+
+		private final long[] seconds = new long[WINDOW];
+		private final long[] counts = new long[WINDOW];
+		private long total = 0;
+		private long busy = 0;
+
+		Meter() {
+			// No second has been counted yet.
+			Arrays.fill(seconds, Long.MIN_VALUE);
+		}
+
+		synchronized void mark(long nanos) {
+			long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+			int i = Math.floorMod(now, WINDOW);
+			if (seconds[i] != now) {
+				seconds[i] = now;
+				counts[i] = 0;
+			}
+			counts[i]++;
+			total++;
+			busy += nanos;
+		}
+
+		@Override
+		public synchronized String toString() {
+			long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+			long recent = 0;
+			for (int i = 0; i < WINDOW; i++) {
+				if (seconds[i] > now - WINDOW) {
+					recent += counts[i];
+				}
+			}
+			return String.format(Locale.ROOT, "%d, %.1f/s over the last %ds, %.2f ms processing each", total,
+					(double) recent / WINDOW, WINDOW, total == 0 ? 0.0 : busy / 1e6 / total);
+		}
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		timer.shutdownNow();
+	}
+}
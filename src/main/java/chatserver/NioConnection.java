@@ -0,0 +1,816 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+
+import common.BinaryCodec;
+import common.CompressedOutputStream;
+import common.Compression;
+import common.DirectCipherOutputStream;
+import common.DTOInputStream;
+import common.DTOOutputStream;
+import common.Features;
+import common.HandshakeModes;
+import common.RecordCipher;
+import common.RecordOutputStream;
+import common.ObjectStreamScanner;
+
+/**
+ * A client connection served by an {@link EventLoop}.
+ * <p/>
+ * Runs the handshake, decrypts incoming bytes and dispatches complete DTOs to
+ * the {@link Session} without ever blocking the loop on the network. Output
+ * is collected in a queue and written whenever the channel accepts more.
+ * Threads other than the loop wait while too much output is queued, so that
+ * the outbox of a slow client fills up and its policy applies.
+ * <p/>
+ * DTOs whose handling may block, see {@link Session#mayBlock(Object)}, are
+ * handled on the server's thread pool instead, together with all DTOs that
+ * arrive until they are done, so that they are still handled in order. We
+ * stop reading from the channel in the meantime.
+ */
+class NioConnection implements EventLoop.Handler {
+	private static final int CHUNK_SIZE = 4096;
+
+	private enum Phase {
+		FIRST_MESSAGE, FIRST_LINE, SECOND_MESSAGE, THIRD_MESSAGE, THIRD_LINE, ESTABLISHED
+	}
+
+	private final Chatserver server;
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+
+	private final Handshake handshake;
+	private final ScheduledFuture<?> deadline;
+	private Phase phase = Phase.FIRST_MESSAGE;
+
+	// Raw bytes during the handshake, plaintext afterwards. Bytes between
+	// start and committed form complete elements that have not been read
+	// yet, bytes between committed and end still await the rest of their
+	// element.
+	private byte[] in = new byte[1024];
+	private int start = 0;
+	private int committed = 0;
+	private int end = 0;
+
+	private Cipher decryption;
+
+	// Raw records that are not complete yet, if the session uses records.
+	private RecordCipher opener;
+	private byte[] records;
+	private int recordsEnd = 0;
+
+	// Decrypted blocks that are not complete yet, if the session is
+	// compressed.
+	private Compression.Decompressor decompressor;
+	private byte[] scratch;
+	private byte[] blocks;
+	private int blocksEnd = 0;
+	private boolean binary;
+	private final ObjectStreamScanner scanner = new ObjectStreamScanner();
+	private ObjectInput ois;
+
+	// DTOs waiting to be handled off the loop, guarded by itself.
+	private final ArrayDeque<Object> inbox = new ArrayDeque<>();
+	private boolean working = false;
+	private Executor worker;
+
+	// Whether we are interested in reading and writing, only used on the
+	// loop.
+	private boolean reading = true;
+	private boolean writing = false;
+
+	private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+	private final Lock pendingLock = new ReentrantLock();
+	private final Condition drained = pendingLock.newCondition();
+	private final int maxPending;
+	private long pendingBytes = 0;
+	private boolean closeWhenFlushed = false;
+	private volatile boolean closed = false;
+
+	private Session session;
+
+	NioConnection(Chatserver server, EventLoop loop, SocketChannel channel) throws IOException {
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		this.handshake = new Handshake(server);
+		this.maxPending = server.getMaxPending();
+
+		channel.configureBlocking(false);
+		this.key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+
+		this.deadline = server.getHandshakes().onDeadline(new Runnable() {
+			@Override
+			public void run() {
+				NioConnection.this.loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (phase != Phase.ESTABLISHED && !closed) {
+							NioConnection.this.server.getHandshakes().timedOut();
+							close();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void ready(SelectionKey key) throws IOException {
+		if (key.isWritable()) {
+			write();
+		}
+		if (key.isValid() && key.isReadable()) {
+			read();
+		}
+	}
+
+	private void read() throws IOException {
+		ByteBuffer buffer = loop.getReadBuffer();
+		buffer.clear();
+
+		int n = channel.read(buffer);
+		if (n == -1) {
+			close();
+			return;
+		}
+
+		int off = 0;
+		while (off < n && !closed) {
+			if (phase == Phase.SECOND_MESSAGE) {
+				// The client has to wait for our reply before it may send
+				// anything else.
+				server.getHandshakes().failed();
+				close();
+				return;
+			}
+			if (phase == Phase.ESTABLISHED) {
+				off += decrypt(buffer.array(), off, n - off);
+			} else if (phase == Phase.FIRST_LINE || phase == Phase.THIRD_LINE) {
+				off += accumulateLine(buffer.array(), off, n - off);
+			} else {
+				off += accumulate(buffer.array(), off, n - off);
+			}
+		}
+	}
+
+	/**
+	 * Collects handshake messages and advances the handshake once a message
+	 * is complete.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	private int accumulate(byte[] b, int off, int len) throws IOException {
+		if (phase == Phase.FIRST_MESSAGE && end == 0 && HandshakeModes.isLine(b[off])) {
+			phase = Phase.FIRST_LINE;
+			return 0;
+		}
+
+		int expected = phase == Phase.FIRST_MESSAGE ? handshake.firstMessageLength()
+				: handshake.thirdMessageLength();
+
+		int n = Math.min(len, expected - end);
+		ensureCapacity(n);
+		System.arraycopy(b, off, in, end, n);
+		end += n;
+
+		if (end < expected) {
+			return n;
+		}
+
+		byte[] message = Arrays.copyOf(in, expected);
+		start = committed = end = 0;
+
+		if (phase == Phase.FIRST_MESSAGE) {
+			receiveFirst(message);
+		} else {
+			receiveThird(message);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Collects a line that takes the place of the first or third message,
+	 * and advances the handshake once it is complete. Modes using lines need
+	 * no private RSA operation on our side, so they are handled right on the
+	 * loop, unless the line carries a first message for us to decrypt.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	private int accumulateLine(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		boolean complete = false;
+		while (n < len && !complete) {
+			complete = b[off + n++] == '\n';
+		}
+
+		if (end + n > HandshakeModes.MAX_LINE_LENGTH) {
+			server.getHandshakes().failed();
+			close();
+			return n;
+		}
+		ensureCapacity(n);
+		System.arraycopy(b, off, in, end, n);
+		end += n;
+
+		if (!complete) {
+			return n;
+		}
+
+		byte[] line = Arrays.copyOf(in, end);
+		start = committed = end = 0;
+
+		if (phase == Phase.THIRD_LINE) {
+			receiveThird(line);
+			return n;
+		}
+
+		byte[] reply = handshake.receiveLine(line);
+		if (reply == null) {
+			server.getHandshakes().failed();
+			close();
+			return n;
+		}
+		if (handshake.getFirstMessage() != null) {
+			receiveFirst(handshake.getFirstMessage());
+			return n;
+		}
+
+		// If we turned the line down, the client goes on with its next mode.
+		if (!handshake.isKeyAgreed()) {
+			phase = Phase.FIRST_MESSAGE;
+		} else {
+			phase = handshake.isThirdLine() ? Phase.THIRD_LINE : Phase.THIRD_MESSAGE;
+		}
+		enqueue(reply, 0, reply.length);
+		write();
+		return n;
+	}
+
+	private void receiveThird(byte[] message) throws IOException {
+		if (!handshake.receiveThird(message)) {
+			server.getHandshakes().failed();
+			close();
+			return;
+		}
+		deadline.cancel(false);
+		server.getHandshakes().completed(handshake.getMode(), handshake.getBusyTime());
+		establish();
+	}
+
+	/**
+	 * Processes the first message on the handshake stage, as RSA is too
+	 * expensive to run on the loop, and sends the reply once it is ready.
+	 */
+	private void receiveFirst(final byte[] message) {
+		phase = Phase.SECOND_MESSAGE;
+
+		boolean admitted = server.getHandshakes().submit(new Runnable() {
+			@Override
+			public void run() {
+				byte[] reply;
+				try {
+					reply = handshake.receiveFirst(message);
+				} catch (IOException e) {
+					reply = null;
+				}
+
+				final byte[] result = reply;
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendSecond(result);
+					}
+				});
+			}
+		});
+
+		if (!admitted) {
+			close();
+		}
+	}
+
+	private void sendSecond(byte[] reply) {
+		if (closed) {
+			return;
+		}
+		if (reply == null) {
+			server.getHandshakes().failed();
+			close();
+			return;
+		}
+
+		phase = Phase.THIRD_MESSAGE;
+		enqueue(reply, 0, reply.length);
+		try {
+			write();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void establish() throws IOException {
+		User user = handshake.getUser();
+		OutputStream os;
+		if (handshake.getFeatures().contains(Features.GCM)) {
+			opener = handshake.newRecordCipher(Cipher.DECRYPT_MODE);
+			records = new byte[RecordCipher.MAX_RECORD_LENGTH];
+			os = new RecordOutputStream(new ChannelOutputStream(), handshake.newRecordCipher(Cipher.ENCRYPT_MODE));
+		} else {
+			decryption = handshake.newCipher(Cipher.DECRYPT_MODE);
+			os = new DirectCipherOutputStream(new ChannelOutputStream(), handshake.newCipher(Cipher.ENCRYPT_MODE));
+		}
+
+		if (handshake.getFeatures().contains(Features.DEFLATE)) {
+			decompressor = server.newDecompressor();
+			scratch = new byte[Math.max(CHUNK_SIZE, RecordCipher.MAX_PLAINTEXT_LENGTH)];
+			blocks = new byte[1024];
+			os = new CompressedOutputStream(os, server.newCompressor());
+		}
+
+		ObjectOutput oos;
+		binary = handshake.getFeatures().contains(Features.BINARY);
+		if (binary) {
+			oos = new DTOOutputStream(os);
+			ois = new DTOInputStream(new InputView());
+		} else {
+			// The input stream is created once its header has arrived.
+			oos = new ObjectOutputStream(os);
+		}
+
+		// Nothing to read from, the loop feeds complete objects to the
+		// session on its own.
+		session = new Session(server, user, null, oos, channel);
+		worker = server.getThreadPool();
+		phase = Phase.ESTABLISHED;
+		oos.flush();
+
+		server.getShell().writeLine("Successfully authenticated " + user.getName());
+		user.addSession(session);
+	}
+
+	/**
+	 * Decrypts and dispatches everything the given bytes complete.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	private int decrypt(byte[] b, int off, int len) throws IOException {
+		if (opener != null) {
+			open(b, off, len);
+		} else if (decompressor != null) {
+			for (int i = 0; i < len; i += scratch.length) {
+				int n = Math.min(len - i, scratch.length);
+				try {
+					n = decryption.update(b, off + i, n, scratch, 0);
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e);
+				}
+				decompress(scratch, 0, n);
+			}
+		} else {
+			ensureCapacity(len);
+			try {
+				end += decryption.update(b, off, len, in, end);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		while (!closed) {
+			int n = binary ? BinaryCodec.frameLength(in, committed, end - committed)
+					: scanner.scan(in, committed, end - committed);
+			if (n == -1) {
+				break;
+			}
+
+			byte tc = in[committed];
+			committed += n;
+
+			if (binary) {
+				dispatch();
+			} else if (ois == null) {
+				ois = new ObjectInputStream(new InputView());
+			} else if (tc == ObjectStreamConstants.TC_BLOCKDATA || tc == ObjectStreamConstants.TC_BLOCKDATALONG) {
+				throw new StreamCorruptedException("Unexpected primitive data.");
+			} else if (tc != ObjectStreamConstants.TC_RESET) {
+				// A reset is consumed together with the next object.
+				dispatch();
+			}
+		}
+
+		if (start == end) {
+			start = committed = end = 0;
+		}
+
+		return len;
+	}
+
+	/**
+	 * Opens all records the given bytes complete, appending their plaintext
+	 * to the buffer, and keeps the rest of an incomplete record.
+	 */
+	private void open(byte[] b, int off, int len) throws IOException {
+		int limit = off + len;
+		while (off < limit) {
+			// Records that arrived in one piece are opened right where they
+			// are, the others are collected first.
+			byte[] src = b;
+			int pos = off;
+			int available = limit - off;
+			if (recordsEnd > 0 || RecordCipher.recordLength(b, off, available) == -1) {
+				int n = recordsEnd < RecordCipher.HEADER_LENGTH ? RecordCipher.HEADER_LENGTH - recordsEnd
+						: RecordCipher.HEADER_LENGTH + ((records[0] & 0xff) << 8 | records[1] & 0xff) - recordsEnd;
+				n = Math.min(n, available);
+				System.arraycopy(b, off, records, recordsEnd, n);
+				recordsEnd += n;
+				off += n;
+				if (recordsEnd == RecordCipher.HEADER_LENGTH && !RecordCipher.isValidHeader(records, 0)) {
+					throw new StreamCorruptedException("Invalid record length.");
+				}
+				if (RecordCipher.recordLength(records, 0, recordsEnd) == -1) {
+					continue;
+				}
+				src = records;
+				pos = 0;
+				available = recordsEnd;
+			} else if (!RecordCipher.isValidHeader(b, off)) {
+				throw new StreamCorruptedException("Invalid record length.");
+			}
+
+			int n = RecordCipher.recordLength(src, pos, available);
+			try {
+				if (decompressor != null) {
+					decompress(scratch, 0, opener.open(src, pos, n, scratch, 0));
+				} else {
+					ensureCapacity(RecordCipher.MAX_PLAINTEXT_LENGTH);
+					end += opener.open(src, pos, n, in, end);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new StreamCorruptedException("Record failed authentication.");
+			}
+
+			if (src == records) {
+				recordsEnd = 0;
+			} else {
+				off += n;
+			}
+		}
+	}
+
+	/**
+	 * Decompresses all blocks the given plaintext completes, appending their
+	 * content to the buffer, and keeps the rest of an incomplete block.
+	 */
+	private void decompress(byte[] b, int off, int len) throws IOException {
+		if (blocksEnd + len > blocks.length) {
+			blocks = Arrays.copyOf(blocks, Math.max(2 * blocks.length, blocksEnd + len));
+		}
+		System.arraycopy(b, off, blocks, blocksEnd, len);
+		blocksEnd += len;
+
+		int pos = 0;
+		int n;
+		while ((n = Compression.blockLength(blocks, pos, blocksEnd - pos)) != -1) {
+			ensureCapacity(Compression.contentLength(blocks, pos, n));
+			end += decompressor.decompress(blocks, pos, n, in, end);
+			pos += n;
+		}
+
+		System.arraycopy(blocks, pos, blocks, 0, blocksEnd - pos);
+		blocksEnd -= pos;
+	}
+
+	private void dispatch() throws IOException {
+		Object o;
+		try {
+			o = ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+
+		synchronized (inbox) {
+			if (working || session.mayBlock(o)) {
+				inbox.add(o);
+				if (!working) {
+					working = true;
+					reading = false;
+					updateInterest();
+					try {
+						worker.execute(drain);
+					} catch (RejectedExecutionException e) {
+						// Shutting down.
+						close();
+					}
+				}
+				return;
+			}
+		}
+
+		handle(o);
+	}
+
+	/**
+	 * @return {@code false} if the session is over
+	 */
+	private boolean handle(Object o) {
+		try {
+			if (!session.handle(o)) {
+				session.close();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			close();
+			return false;
+		}
+	}
+
+	/**
+	 * Handles the DTOs in the inbox off the loop, and resumes reading once
+	 * it is empty.
+	 */
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				Object o;
+				synchronized (inbox) {
+					o = inbox.poll();
+					if (o == null) {
+						working = false;
+						break;
+					}
+				}
+				if (!handle(o)) {
+					return;
+				}
+			}
+
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (inbox) {
+						// Unless we got busy again in the meantime.
+						reading = !working;
+					}
+					updateInterest();
+				}
+			});
+		}
+	};
+
+	private void updateInterest() {
+		if (!closed && key.isValid()) {
+			key.interestOps((reading ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0));
+		}
+	}
+
+	private void ensureCapacity(int n) {
+		if (end + n <= in.length) {
+			return;
+		}
+		if (start > 0) {
+			System.arraycopy(in, start, in, 0, end - start);
+			committed -= start;
+			end -= start;
+			start = 0;
+		}
+		if (end + n > in.length) {
+			in = Arrays.copyOf(in, Math.max(in.length * 2, end + n));
+		}
+	}
+
+	private void enqueue(byte[] b, int off, int len) {
+		pendingLock.lock();
+		try {
+			ByteBuffer last = pending.peekLast();
+			while (len > 0) {
+				if (last == null || !last.hasRemaining()) {
+					last = ByteBuffer.allocate(Math.max(CHUNK_SIZE, len));
+					pending.add(last);
+				}
+				int n = Math.min(len, last.remaining());
+				last.put(b, off, n);
+				off += n;
+				len -= n;
+				pendingBytes += n;
+			}
+		} finally {
+			pendingLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until less than the maximum of output is queued, unless we are
+	 * on the loop, which must never wait for itself.
+	 */
+	private void awaitRoom() throws IOException {
+		if (loop.inLoop()) {
+			return;
+		}
+		pendingLock.lock();
+		try {
+			if (pendingBytes < maxPending) {
+				return;
+			}
+			// Make sure the loop is going to write what we queued.
+			flush();
+			while (pendingBytes >= maxPending && !closed) {
+				drained.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			pendingLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes as much pending output as the channel takes and waits for the
+	 * channel to become writable again if there is more. Must run on the
+	 * loop.
+	 */
+	private void write() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		boolean empty;
+		pendingLock.lock();
+		try {
+			for (ByteBuffer buffer : pending) {
+				buffer.flip();
+			}
+			pendingBytes -= channel.write(pending.toArray(new ByteBuffer[pending.size()]));
+			if (pendingBytes < maxPending) {
+				drained.signalAll();
+			}
+			while (!pending.isEmpty() && !pending.peekFirst().hasRemaining()) {
+				pending.removeFirst();
+			}
+			for (ByteBuffer buffer : pending) {
+				buffer.compact();
+			}
+			empty = pending.isEmpty();
+		} finally {
+			pendingLock.unlock();
+		}
+
+		if (empty && closeWhenFlushed) {
+			close();
+			return;
+		}
+
+		writing = !empty;
+		updateInterest();
+	}
+
+	private void flush() {
+		if (loop.inLoop()) {
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+			return;
+		}
+
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private void closeWhenFlushed() {
+		if (loop.inLoop()) {
+			closeWhenFlushed = true;
+			flush();
+			return;
+		}
+
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeWhenFlushed();
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		// Wake up writers, which might hold the lock of the session.
+		pendingLock.lock();
+		try {
+			drained.signalAll();
+		} finally {
+			pendingLock.unlock();
+		}
+
+		deadline.cancel(false);
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+
+		if (session != null) {
+			// Closes the compressor once the outbox stopped writing.
+			session.close();
+		}
+		if (decompressor != null) {
+			decompressor.close();
+		}
+	}
+
+	/**
+	 * Reads the complete elements of the plaintext buffer.
+	 */
+	private class InputView extends InputStream {
+		@Override
+		public int read() throws IOException {
+			return start < committed ? in[start++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (start == committed) {
+				return -1;
+			}
+			int n = Math.min(len, committed - start);
+			System.arraycopy(in, start, b, off, n);
+			start += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return committed - start;
+		}
+	}
+
+	/**
+	 * Queues output for the loop to write. Safe to use from any thread, as
+	 * long as writes of one logical message are not interleaved. Output after
+	 * the connection was closed is discarded.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			awaitRoom();
+			if (!closed) {
+				enqueue(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			NioConnection.this.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeWhenFlushed();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves all client connections on a fixed number of {@link EventLoop}s
+ * instead of one thread per connection.
+ * <p/>
+ * The first loop also accepts new connections and hands them to the loops in
+ * round-robin order.
+ */
+class NioServer implements Runnable, EventLoop.Handler {
+	private final Chatserver server;
+	private final EventLoop[] loops;
+	private final ServerSocketChannel serverChannel;
+
+	private int next = 0;
+
+	NioServer(Chatserver server, int port, int threads) throws IOException {
+		this.server = server;
+		this.loops = new EventLoop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(loops[0].getSelector(), SelectionKey.OP_ACCEPT, this);
+	}
+
+	/**
+	 * Runs the first loop on the calling thread and all others on threads of
+	 * their own. Returns once the server is closed.
+	 */
+	@Override
+	public void run() {
+		for (int i = 1; i < loops.length; i++) {
+			Thread thread = new Thread(loops[i], "event-loop-" + i);
+			thread.start();
+		}
+		loops[0].run();
+	}
+
+	@Override
+	public void ready(SelectionKey key) throws IOException {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				if (!serverChannel.isOpen()) {
+					throw e;
+				}
+				// Probably out of file descriptors, try again on the next
+				// round.
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+
+			final SocketChannel accepted = channel;
+			final EventLoop loop = loops[next];
+			next = (next + 1) % loops.length;
+
+			// Channels have to be registered by the thread that selects,
+			// otherwise registration would block until select() returns.
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						new NioConnection(server, loop, accepted);
+					} catch (IOException e) {
+						try {
+							accepted.close();
+						} catch (IOException ignored) {
+						}
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			serverChannel.close();
+		} catch (IOException ignored) {
+		}
+
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+	}
+}
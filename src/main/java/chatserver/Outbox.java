@@ -0,0 +1,299 @@
+package chatserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of DTOs that are yet to be written to a {@link Session}.
+ * <p/>
+ * Senders only enqueue, the queue is drained by a task on an executor that
+ * is scheduled whenever the queue becomes non-empty. This way a slow client
+ * only holds up its own deliveries instead of everybody who broadcasts.
+ * What happens once the queue is full is decided by the {@link Policy}.
+ * <p/>
+ * The task writes all queued DTOs, at most a batch at a time, and flushes
+ * once per batch, so that the socket sees one write per batch rather than
+ * per DTO. It may linger for more DTOs before flushing a batch that is not
+ * full yet.
+ */
+class Outbox implements Runnable {
+	enum Policy {
+		/**
+		 * Discard the oldest queued DTO to make room.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Close the session of the slow client.
+		 */
+		DISCONNECT,
+
+		/**
+		 * Block the sender until there is room, and discard the DTO if there
+		 * still is none after the timeout.
+		 */
+		BLOCK;
+
+		/**
+		 * @param name
+		 *            one of "drop-oldest", "disconnect" or "block"
+		 */
+		static Policy parse(String name) {
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/**
+	 * Batch sizes and flush latencies of all outboxes of a server. The
+	 * latency of a batch is the time from writing its first DTO to the end of
+	 * the flush.
+	 */
+	static class Stats {
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong messages = new AtomicLong();
+		private final AtomicLong largest = new AtomicLong();
+		private final AtomicLong latency = new AtomicLong();
+		private final AtomicLong maxLatency = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+
+		void flushed(int size, long nanos) {
+			batches.incrementAndGet();
+			messages.addAndGet(size);
+			latency.addAndGet(nanos);
+			long max;
+			while (size > (max = largest.get()) && !largest.compareAndSet(max, size)) {
+			}
+			while (nanos > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, nanos)) {
+			}
+		}
+
+		@Override
+		public String toString() {
+			long batches = this.batches.get();
+			return String.format(Locale.ROOT,
+					"Batches flushed: %d, %.1f messages each, at most %d%n"
+							+ "Flush latency: %.2f ms on average, at most %.2f ms%n" + "Messages dropped: %d",
+					batches, batches == 0 ? 0.0 : (double) messages.get() / batches, largest.get(),
+					batches == 0 ? 0.0 : latency.get() / 1e6 / batches, maxLatency.get() / 1e6, dropped.get());
+		}
+	}
+
+	private final Session session;
+	private final Executor executor;
+	private final int capacity;
+	private final Policy policy;
+	private final long timeout;
+	private final int batch;
+	private final long linger;
+	private final Stats stats;
+
+	private final ArrayDeque<Object> queue = new ArrayDeque<>();
+	private final Lock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition notEmpty = lock.newCondition();
+	private boolean scheduled = false;
+	private boolean closed = false;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param timeout
+	 *            how long to block a sender in milliseconds, only used with
+	 *            {@link Policy#BLOCK}
+	 * @param batch
+	 *            how many DTOs to write at most before flushing
+	 * @param linger
+	 *            how long to wait for more DTOs before flushing a batch that
+	 *            is not full in microseconds, or 0 to flush as soon as the
+	 *            queue is empty
+	 */
+	Outbox(Session session, Executor executor, int capacity, Policy policy, long timeout, int batch, long linger,
+			Stats stats) {
+		this.session = session;
+		this.executor = executor;
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.timeout = timeout;
+		this.batch = Math.max(1, batch);
+		this.linger = linger;
+		this.stats = stats;
+	}
+
+	/**
+	 * Queues a DTO for delivery.
+	 *
+	 * @return {@code false} if the DTO was discarded
+	 */
+	boolean offer(Object o) {
+		boolean schedule = false;
+		boolean disconnect = false;
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+
+			if (queue.size() >= capacity) {
+				switch (policy) {
+				case DROP_OLDEST:
+					queue.poll();
+					dropped();
+					break;
+				case DISCONNECT:
+					closed = disconnect = true;
+					queue.clear();
+					break;
+				case BLOCK:
+					if (!awaitRoom()) {
+						dropped();
+						return false;
+					}
+					break;
+				}
+			}
+
+			if (!closed) {
+				queue.add(o);
+				notEmpty.signal();
+				schedule = !scheduled;
+				scheduled = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (disconnect) {
+			// The client did not keep up, so we hang up on it. Aborting might
+			// block on the connection, so do not do it while holding the
+			// lock.
+			session.abort();
+			return false;
+		}
+
+		if (schedule) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// The server is shutting down.
+				close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean awaitRoom() {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		try {
+			while (queue.size() >= capacity && !closed) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !closed;
+	}
+
+	private void dropped() {
+		dropped.incrementAndGet();
+		stats.dropped.incrementAndGet();
+	}
+
+	/**
+	 * Writes queued DTOs until the queue is empty, flushing once per batch.
+	 */
+	@Override
+	public void run() {
+		int written = 0;
+		long since = 0;
+		while (true) {
+			Object o;
+			lock.lock();
+			try {
+				o = queue.poll();
+				if (o == null && written > 0 && written < batch && linger > 0 && !closed) {
+					o = awaitMore(since);
+				}
+				if (o == null && written == 0) {
+					scheduled = false;
+					return;
+				}
+				if (o != null) {
+					notFull.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				if (o != null) {
+					if (written == 0) {
+						since = System.nanoTime();
+					}
+					session.write(o);
+					written++;
+				}
+				if (o == null || written == batch) {
+					session.flush();
+					stats.flushed(written, System.nanoTime() - since);
+					written = 0;
+				}
+			} catch (IOException e) {
+				close();
+				session.abort();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits for another DTO until the batch started at the given time has
+	 * lingered long enough.
+	 */
+	private Object awaitMore(long since) {
+		long nanos = since + TimeUnit.MICROSECONDS.toNanos(linger) - System.nanoTime();
+		try {
+			while (queue.isEmpty() && !closed && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return queue.poll();
+	}
+
+	/**
+	 * Discards all queued DTOs and wakes up blocked senders. Later offers are
+	 * discarded as well.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			queue.clear();
+			notFull.signalAll();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of DTOs discarded because the queue was full
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,95 @@
+package chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Chunks;
+
+/**
+ * Sorted names of all online users, maintained as users come online and go
+ * offline, together with the reply to {@code !list}.
+ * <p/>
+ * Every change bumps a version. The reply is encoded at most once per
+ * version, so that answering {@code !list} only has to hand out the cached
+ * bytes. Replies too long for one datagram are split into chunks once as
+ * well.
+ */
+public class Presence {
+	private final NavigableSet<String> online = new ConcurrentSkipListSet<>();
+	private final AtomicLong version = new AtomicLong();
+
+	private volatile Snapshot snapshot = null;
+
+	void online(String name) {
+		if (online.add(name)) {
+			version.incrementAndGet();
+		}
+	}
+
+	void offline(String name) {
+		if (online.remove(name)) {
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the current version, changing whenever a user comes online or
+	 *         goes offline
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * @return the reply to {@code !list}, must not be modified
+	 */
+	public byte[] getReply() {
+		return snapshot().reply;
+	}
+
+	/**
+	 * @return the reply to {@code !list} split into datagrams by
+	 *         {@link Chunks}, must not be modified
+	 */
+	public byte[][] getDatagrams() {
+		return snapshot().datagrams;
+	}
+
+	private Snapshot snapshot() {
+		// Read the version before the names. If they change meanwhile, the
+		// version does too and the next call encodes them again.
+		long v = version.get();
+		Snapshot s = snapshot;
+		if (s != null && s.version == v) {
+			return s;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		if (online.isEmpty()) {
+			sb.append("No online users.");
+		} else {
+			sb.append("Online users:\n");
+			for (String name : online) {
+				sb.append("* ").append(name).append('\n');
+			}
+		}
+
+		s = new Snapshot(v, sb.toString().getBytes(StandardCharsets.UTF_8));
+		snapshot = s;
+		return s;
+	}
+
+	private static final class Snapshot {
+		final long version;
+		final byte[] reply;
+		final byte[][] datagrams;
+
+		Snapshot(long version, byte[] reply) {
+			this.version = version;
+			this.reply = reply;
+			this.datagrams = Chunks.split(reply, Chunks.MAX_DATAGRAM);
+		}
+	}
+}
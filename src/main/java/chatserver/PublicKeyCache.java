@@ -0,0 +1,203 @@
+package chatserver;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.Keys;
+
+/**
+ * The public keys of all users, read from the key directory once and kept
+ * in memory, so that handshakes do not have to touch the disk.
+ * <p/>
+ * A {@link WatchService} picks up keys that are added, changed or removed
+ * later on, and tells the {@link Listener} about users that come or go.
+ */
+class PublicKeyCache implements Runnable {
+	private static final String SUFFIX = ".pub.pem";
+
+	interface Listener {
+		void added(String username);
+
+		void removed(String username);
+	}
+
+	private final File keyDir;
+	private final File ownKey;
+	private final Listener listener;
+	private final ConcurrentMap<String, PublicKey> keys = new ConcurrentHashMap<>();
+
+	private WatchService watcher;
+
+	/**
+	 * @param ownKey
+	 *            the server's own public key, which is not the key of a user
+	 */
+	PublicKeyCache(File keyDir, File ownKey, Listener listener) {
+		this.keyDir = keyDir;
+		this.ownKey = ownKey;
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads all keys in parallel, and starts watching the directory for
+	 * changes, so that none are missed in between.
+	 */
+	void load() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		keyDir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		reload();
+	}
+
+	private void reload() {
+		File[] files = keyDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				return isUserKey(pathname) && !pathname.isDirectory();
+			}
+		});
+		if (files == null) {
+			files = new File[0];
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<>(files.length);
+		Set<String> found = new HashSet<>();
+		for (final File file : files) {
+			found.add(username(file));
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					read(file);
+					return null;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		} finally {
+			executor.shutdown();
+		}
+
+		for (String username : keys.keySet()) {
+			if (!found.contains(username)) {
+				remove(username);
+			}
+		}
+	}
+
+	/**
+	 * Watches the key directory until {@link #close()} is called.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					reload();
+					continue;
+				}
+
+				File file = new File(keyDir, ((Path) event.context()).toString());
+				if (!isUserKey(file)) {
+					continue;
+				}
+
+				if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					remove(username(file));
+				} else {
+					read(file);
+				}
+			}
+
+			if (!key.reset()) {
+				// The directory is gone.
+				return;
+			}
+		}
+	}
+
+	void close() {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			watcher.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * @return the public key of the given user, or {@code null} if there is
+	 *         none
+	 */
+	PublicKey get(String username) {
+		return keys.get(username);
+	}
+
+	private void read(File file) {
+		String username = username(file);
+		PublicKey key;
+		try {
+			key = Keys.readPublicPEM(file);
+		} catch (IOException | RuntimeException e) {
+			// Most likely the file is still being written, we will be
+			// notified again once it is complete.
+			return;
+		}
+		if (key == null) {
+			return;
+		}
+		if (keys.put(username, key) == null) {
+			listener.added(username);
+		}
+	}
+
+	private void remove(String username) {
+		if (keys.remove(username) != null) {
+			listener.removed(username);
+		}
+	}
+
+	private boolean isUserKey(File file) {
+		return file.getName().endsWith(SUFFIX) && !file.equals(ownKey);
+	}
+
+	private static String username(File file) {
+		return file.getName().substring(0, file.getName().length() - SUFFIX.length());
+	}
+}
@@ -0,0 +1,195 @@
+package chatserver;
+
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nameserver.Resolution;
+
+/**
+ * Caches resolutions of user names, so that popular names do not cost an
+ * RMI call to the nameservers on every lookup.
+ * <p/>
+ * Entries expire after a TTL, which is shorter for names that could not be
+ * resolved. At most a fixed number of entries is kept, evicting the least
+ * recently used one. Concurrent misses for the same name wait for a single
+ * call instead of each making their own.
+ */
+class ResolverCache {
+	interface Resolver {
+		Resolution resolve(String name) throws RemoteException;
+	}
+
+	private static class Entry {
+		final Resolution resolution;
+		final long expires;
+
+		Entry(Resolution resolution, long expires) {
+			this.resolution = resolution;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A call to the resolver that others may wait for.
+	 */
+	private static class Miss extends FutureTask<Resolution> {
+		// Set if the name was invalidated while the call was running, so
+		// that its result may be outdated. Guarded by the entries.
+		boolean invalidated = false;
+
+		Miss(Callable<Resolution> call) {
+			super(call);
+		}
+	}
+
+	private final Resolver resolver;
+	private final long ttl;
+	private final long negativeTtl;
+	private final int size;
+
+	// Guarded by itself. In access order, so that the eldest entry is the
+	// least recently used one.
+	private final LinkedHashMap<String, Entry> entries;
+
+	private final ConcurrentMap<String, Miss> pending = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param ttl
+	 *            how long to keep a resolution in milliseconds
+	 * @param negativeTtl
+	 *            how long to remember that a name could not be resolved in
+	 *            milliseconds
+	 * @param size
+	 *            how many resolutions to keep at most
+	 */
+	ResolverCache(Resolver resolver, long ttl, long negativeTtl, final int size) {
+		this.resolver = resolver;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.size = size;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > ResolverCache.this.size) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached resolution of the given name, or a fresh one if
+	 *         there is none or it expired
+	 */
+	Resolution resolve(final String name) throws RemoteException {
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Entry entry = entries.get(name);
+			if (entry != null && entry.expires > now) {
+				(entry.resolution.isResolved() ? hits : negativeHits).incrementAndGet();
+				return entry.resolution;
+			}
+		}
+
+		Miss task = new Miss(new Callable<Resolution>() {
+			@Override
+			public Resolution call() throws RemoteException {
+				return resolver.resolve(name);
+			}
+		});
+		FutureTask<Resolution> running = pending.putIfAbsent(name, task);
+		if (running == null) {
+			misses.incrementAndGet();
+			try {
+				task.run();
+				put(name, task);
+			} catch (ExecutionException | InterruptedException ignored) {
+				// Reported below, errors are not cached.
+			} finally {
+				pending.remove(name, task);
+			}
+			running = task;
+		} else {
+			coalesced.incrementAndGet();
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while resolving " + name + ".", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException) {
+				throw (RemoteException) e.getCause();
+			}
+			throw new RemoteException("Could not resolve " + name + ".", e.getCause());
+		}
+	}
+
+	/**
+	 * Caches the result of the given miss, unless the name was invalidated
+	 * while it was running.
+	 */
+	private void put(String name, Miss miss) throws ExecutionException, InterruptedException {
+		Resolution resolution = miss.get();
+		if (size <= 0) {
+			return;
+		}
+		long expires = System.currentTimeMillis() + (resolution.isResolved() ? ttl : negativeTtl);
+		synchronized (entries) {
+			if (!miss.invalidated) {
+				entries.put(name, new Entry(resolution, expires));
+			}
+		}
+	}
+
+	/**
+	 * Forgets the resolution of the given name, e.g. because its address
+	 * changed. A call for the name that is still running is not cached, and
+	 * later lookups do not wait for it.
+	 */
+	void invalidate(String name) {
+		synchronized (entries) {
+			entries.remove(name);
+			Miss miss = pending.remove(name);
+			if (miss != null) {
+				miss.invalidated = true;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		int n;
+		synchronized (entries) {
+			n = entries.size();
+		}
+		long hits = this.hits.get();
+		long negativeHits = this.negativeHits.get();
+		long misses = this.misses.get();
+		long total = hits + negativeHits + misses + coalesced.get();
+		return String.format(Locale.ROOT,
+				"Entries: %d of at most %d%n" + "Hits: %d, for unknown users: %d%n"
+						+ "Misses: %d, coalesced with another miss: %d%n" + "Hit rate: %.1f%%%n" + "Evictions: %d",
+				n, size, hits, negativeHits, misses, coalesced.get(),
+				total == 0 ? 0.0 : 100.0 * (hits + negativeHits) / total, evictions.get());
+	}
+}
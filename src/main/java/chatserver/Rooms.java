@@ -0,0 +1,78 @@
+package chatserver;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BiFunction;
+
+/**
+ * Subscriptions of sessions to rooms, indexed by room.
+ * <p/>
+ * A message to a room only touches the sessions that joined it, instead of
+ * every online user like a public message. Members are kept in a
+ * copy-on-write set per room, so posting never locks out joining or
+ * leaving. Empty rooms are dropped. Joining and leaving change the set of a
+ * room atomically with the map, so that nobody joins a room that is being
+ * dropped.
+ */
+public class Rooms {
+	private final ConcurrentMap<String, Set<Session>> rooms = new ConcurrentHashMap<>();
+
+	/**
+	 * @return {@code false} if the session already is a member
+	 */
+	public boolean join(String room, final Session session) {
+		final boolean[] added = new boolean[1];
+		rooms.compute(room, new BiFunction<String, Set<Session>, Set<Session>>() {
+			@Override
+			public Set<Session> apply(String room, Set<Session> members) {
+				if (members == null) {
+					members = new CopyOnWriteArraySet<>();
+				}
+				added[0] = members.add(session);
+				return members;
+			}
+		});
+		return added[0];
+	}
+
+	/**
+	 * @return {@code false} if the session was not a member
+	 */
+	public boolean leave(String room, final Session session) {
+		final boolean[] removed = new boolean[1];
+		rooms.computeIfPresent(room, new BiFunction<String, Set<Session>, Set<Session>>() {
+			@Override
+			public Set<Session> apply(String room, Set<Session> members) {
+				removed[0] = members.remove(session);
+				return members.isEmpty() ? null : members;
+			}
+		});
+		return removed[0];
+	}
+
+	/**
+	 * @return the sessions that joined the given room, safe to iterate while
+	 *         others join and leave
+	 */
+	public Set<Session> getMembers(String room) {
+		Set<Session> members = rooms.get(room);
+		return members == null ? Collections.<Session> emptySet() : members;
+	}
+
+	/**
+	 * @return the number of members of every room, by name
+	 */
+	public SortedMap<String, Integer> getSizes() {
+		SortedMap<String, Integer> sizes = new TreeMap<>();
+		for (Map.Entry<String, Set<Session>> entry : rooms.entrySet()) {
+			sizes.put(entry.getKey(), entry.getValue().size());
+		}
+		return sizes;
+	}
+}
@@ -1,52 +1,128 @@
 package chatserver;
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import common.EncodedFrame;
+import dto.JoinDTO;
+import dto.LeaveDTO;
 import dto.LoggedOutDTO;
 import dto.LogoutDTO;
 import dto.LookupDTO;
 import dto.AddressDTO;
 import dto.RegisteredDTO;
 import dto.MessageDTO;
-import nameserver.INameserverForChatserver;
+import dto.RoomMessageDTO;
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 
 public class Session {
 	private final Chatserver server;
 	private final User user;
-	private final ObjectInputStream ois;
-	private final ObjectOutputStream oos;
+	private final ObjectInput ois;
+	private final ObjectOutput oos;
+	private final Closeable connection;
+	private final Outbox outbox;
+	private final Set<String> rooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-	public Session(Chatserver server, User user, ObjectInputStream ois, ObjectOutputStream oos) {
+	// Guards oos against concurrent broadcasts. Not a monitor, so that
+	// sessions running on virtual threads do not pin their carrier while
+	// blocked writing to a slow client.
+	private final Lock writeLock = new ReentrantLock();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param ois
+	 *            the stream to read DTOs from in {@link #talk()}, may be
+	 *            {@code null} if DTOs are passed to {@link #handle(Object)}
+	 *            by somebody else
+	 * @param connection
+	 *            closed together with the session
+	 */
+	public Session(Chatserver server, User user, ObjectInput ois, ObjectOutput oos, Closeable connection) {
 		this.server = server;
 		this.user = user;
 		this.ois = ois;
 		this.oos = oos;
+		this.connection = connection;
+		this.outbox = server.newOutbox(this);
 	}
 
 	public void send(MessageDTO dto) {
-		for (User u : server.getUsers()) {
+		// Build and encode the message once for all recipients, only the
+		// encryption is left to every session.
+		EncodedFrame frame;
+		try {
+			frame = EncodedFrame.of(new MessageDTO(user.getName() + ": " + dto.getMessage()));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		for (User u : server.getDirectory().getUsers()) {
 			if (u != user && u.isOnline()) {
-				try {
-					u.writeObject(new MessageDTO(user.getName() + ": " + dto.getMessage()));
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				u.deliver(frame);
+			}
+		}
+	}
+
+	/**
+	 * Delivers a message to the other members of a room this session joined.
+	 */
+	public void post(RoomMessageDTO dto) {
+		if (dto.getRoom() == null || !rooms.contains(dto.getRoom())) {
+			return;
+		}
+
+		EncodedFrame frame;
+		try {
+			frame = EncodedFrame.of(new RoomMessageDTO(dto.getRoom(), user.getName() + ": " + dto.getMessage()));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		for (Session session : server.getRooms().getMembers(dto.getRoom())) {
+			if (session.user != user) {
+				session.deliver(frame);
 			}
 		}
 	}
 
+	public void join(JoinDTO dto) {
+		if (dto.getRoom() != null && rooms.add(dto.getRoom())) {
+			server.getRooms().join(dto.getRoom(), this);
+			if (closed) {
+				// Lost the race against close(), which may have cleared our
+				// rooms before we joined.
+				rooms.remove(dto.getRoom());
+				server.getRooms().leave(dto.getRoom(), this);
+			}
+		}
+	}
+
+	public void leave(LeaveDTO dto) {
+		if (dto.getRoom() != null && rooms.remove(dto.getRoom())) {
+			server.getRooms().leave(dto.getRoom(), this);
+		}
+	}
+
 	public RegisteredDTO register(AddressDTO dto) {
 		user.setAddress(dto.getAddress());
 
 		try {
-			server.getRootNameserver().registerUser(user.getName(), user.getAddress());
+			server.getZones().registerUser(user.getName(), user.getAddress());
+			server.getResolver().invalidate(user.getName());
 		} catch (AlreadyRegisteredException e) {
 			try {
 				server.getShell().writeLine("Denied registration of " + user.getName() + " at " + dto.getAddress() + " because user is already registered!");
@@ -61,14 +137,10 @@ public class Session {
 	}
 
 	public AddressDTO lookup(LookupDTO dto) {
-		String[] parts = dto.getUsername().split("\\.");
-		INameserverForChatserver callback = server.getRootNameserver();
-
 		try {
-			for (int i = (parts.length - 1) ; i > 0 ; i--) {
-				callback = callback.getNameserver(parts[i]);
-			}
-			return new AddressDTO(callback.lookup(parts[0]));
+			// At most a single round trip, to the nameserver of the user's
+			// zone once we know it.
+			return new AddressDTO(server.getResolver().resolve(dto.getUsername()).getAddress());
 		} catch (RemoteException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -76,44 +148,159 @@ public class Session {
 		}
 	}
 
+	/**
+	 * Writes a DTO, or an {@link EncodedFrame}, to the client right away.
+	 */
 	public void writeObject(Object o) throws IOException {
-		oos.writeObject(o);
+		writeLock.lock();
+		try {
+			write(o);
+			flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a DTO, or an {@link EncodedFrame}, without flushing, so that it
+	 * may go out together with the following ones.
+	 */
+	void write(Object o) throws IOException {
+		writeLock.lock();
+		try {
+			if (o instanceof EncodedFrame) {
+				((EncodedFrame) o).writeTo(oos);
+			} else {
+				oos.writeObject(o);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	void flush() throws IOException {
+		writeLock.lock();
+		try {
+			oos.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a DTO to be written by the outbox, so that the caller does not
+	 * wait for a slow client.
+	 *
+	 * @return {@code false} if the DTO was discarded
+	 */
+	public boolean deliver(Object o) {
+		return outbox.offer(o);
+	}
+
+	/**
+	 * Acts on a DTO received from the client.
+	 *
+	 * @return {@code false} if the client logged out and the session should
+	 *         be closed
+	 */
+	public boolean handle(Object o) throws IOException {
+		if (o instanceof MessageDTO) {
+			send((MessageDTO) o);
+		} else if (o instanceof AddressDTO) {
+			writeObject(register((AddressDTO) o));
+		} else if (o instanceof LookupDTO) {
+			writeObject(lookup((LookupDTO) o));
+		} else if (o instanceof RoomMessageDTO) {
+			post((RoomMessageDTO) o);
+		} else if (o instanceof JoinDTO) {
+			join((JoinDTO) o);
+		} else if (o instanceof LeaveDTO) {
+			leave((LeaveDTO) o);
+		} else if (o instanceof LogoutDTO) {
+			writeObject(new LoggedOutDTO());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return {@code true} if handling the given DTO may block, e.g. on the
+	 *         nameservers or on a full outbox, so that an event loop should
+	 *         leave it to another thread
+	 */
+	boolean mayBlock(Object o) {
+		if (o instanceof JoinDTO || o instanceof LeaveDTO) {
+			return false;
+		}
+		if (o instanceof MessageDTO || o instanceof RoomMessageDTO) {
+			return server.isDeliveryBlocking();
+		}
+		// Everything else is answered, and writing the answer waits for the
+		// lock a writer might hold.
+		return true;
 	}
 
 	public void talk() {
 		try {
-			Object o = null;
-
-			while (!Thread.currentThread().isInterrupted()) {
-				o = ois.readObject();
-
-				if (o instanceof MessageDTO) {
-					send((MessageDTO) o);
-				} else if (o instanceof AddressDTO) {
-					writeObject(register((AddressDTO) o));
-				} else if (o instanceof LookupDTO) {
-					writeObject(lookup((LookupDTO) o));
-				} else if (o instanceof LogoutDTO) {
-					writeObject(new LoggedOutDTO());
-					break;
-				}
-
-				oos.flush();
+			while (!Thread.currentThread().isInterrupted() && handle(ois.readObject())) {
 			}
 		} catch (EOFException ignored) {
 		} catch (IOException | ClassNotFoundException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		} finally {
-			try {
-				oos.flush();
-				oos.close();
+			close();
+		}
+	}
+
+	/**
+	 * Flushes and closes the streams as well as the connection, and marks the
+	 * user offline if this was their last session. Closing a session twice has
+	 * no effect.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		outbox.close();
+
+		for (String room : rooms) {
+			server.getRooms().leave(room, this);
+		}
+		rooms.clear();
+
+		writeLock.lock();
+		try {
+			oos.flush();
+			oos.close();
+		} catch (IOException ignored) {
+		} finally {
+			writeLock.unlock();
+		}
+
+		try {
+			if (ois != null) {
 				ois.close();
-			} catch (IOException ignored) {
 			}
+			connection.close();
+		} catch (IOException ignored) {
+		}
+
+		user.removeSession(this);
+	}
 
-			user.removeSession(this);
+	/**
+	 * Closes the connection first, so that a writer blocked on it gives up,
+	 * and then the session.
+	 */
+	void abort() {
+		try {
+			connection.close();
+		} catch (IOException ignored) {
 		}
+		close();
 	}
 
 	@Override
@@ -0,0 +1,97 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import util.SecurityUtils;
+
+/**
+ * Issues and opens resumption tickets.
+ * <p/>
+ * A ticket carries the user name, the resumption secret and the time it
+ * expires, encrypted and authenticated with AES-GCM under a key that is
+ * generated at startup and never leaves the server. Restarting the server
+ * thus invalidates all tickets, and clients fall back to a full handshake.
+ */
+class Tickets {
+	private static final String SPEC = "AES/GCM/NoPadding";
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 128;
+	private static final int SECRET_LENGTH = 32;
+
+	private final SecretKeySpec key = new SecretKeySpec(SecurityUtils.randomBytes(32), "AES");
+	private final long lifetime;
+
+	/**
+	 * @param lifetime
+	 *            how long tickets are valid in milliseconds
+	 */
+	Tickets(long lifetime) {
+		this.lifetime = lifetime;
+	}
+
+	static final class Ticket {
+		final String username;
+		final byte[] secret;
+
+		Ticket(String username, byte[] secret) {
+			this.username = username;
+			this.secret = secret;
+		}
+	}
+
+	/**
+	 * @return the Base64 encoded ticket
+	 */
+	String issue(String username, byte[] secret) throws GeneralSecurityException {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer plaintext = ByteBuffer.allocate(8 + SECRET_LENGTH + name.length);
+		plaintext.putLong(System.currentTimeMillis() + lifetime);
+		plaintext.put(secret, 0, SECRET_LENGTH);
+		plaintext.put(name);
+
+		byte[] iv = SecurityUtils.randomBytes(IV_LENGTH);
+		Cipher cipher = SecurityUtils.cipher(SPEC);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+		byte[] ciphertext = cipher.doFinal(plaintext.array());
+
+		byte[] ticket = Arrays.copyOf(iv, IV_LENGTH + ciphertext.length);
+		System.arraycopy(ciphertext, 0, ticket, IV_LENGTH, ciphertext.length);
+		return new String(Base64.encode(ticket));
+	}
+
+	/**
+	 * @return the contents of the ticket, or {@code null} if it is invalid or
+	 *         expired
+	 */
+	Ticket open(String encoded) {
+		byte[] plaintext;
+		try {
+			byte[] ticket = Base64.decode(encoded);
+			if (ticket.length < IV_LENGTH + TAG_LENGTH / 8 + 8 + SECRET_LENGTH) {
+				return null;
+			}
+			Cipher cipher = SecurityUtils.cipher(SPEC);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, ticket, 0, IV_LENGTH));
+			plaintext = cipher.doFinal(ticket, IV_LENGTH, ticket.length - IV_LENGTH);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+		if (buffer.getLong() < System.currentTimeMillis()) {
+			return null;
+		}
+		byte[] secret = new byte[SECRET_LENGTH];
+		buffer.get(secret);
+		return new Ticket(new String(plaintext, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8), secret);
+	}
+}
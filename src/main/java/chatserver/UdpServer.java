@@ -0,0 +1,106 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+import common.Chunks;
+
+/**
+ * Answers {@code !list} datagrams.
+ * <p/>
+ * A few workers share one channel. Each of them receives a request, answers
+ * it and receives the next one, reusing a pair of direct buffers, so that
+ * requests are neither copied to the heap nor does answering one hold up
+ * the others.
+ */
+class UdpServer {
+	private static final byte[] LIST = "!list".getBytes(StandardCharsets.US_ASCII);
+
+	private final Chatserver server;
+	private final DatagramChannel channel;
+	private final Thread[] workers;
+
+	private volatile boolean closed = false;
+
+	UdpServer(Chatserver server, int port, int threads) throws IOException {
+		this.server = server;
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress(port));
+		this.workers = new Thread[Math.max(1, threads)];
+	}
+
+	void start() {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Worker(), "udp-" + i);
+			workers[i].start();
+		}
+	}
+
+	void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private class Worker implements Runnable {
+		// Requests are tiny, anything longer than "!list" is ignored anyway.
+		private final ByteBuffer request = ByteBuffer.allocateDirect(64);
+		private final ByteBuffer reply = ByteBuffer.allocateDirect(Chunks.MAX_DATAGRAM);
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					request.clear();
+					SocketAddress source = channel.receive(request);
+					request.flip();
+
+					if (source == null || !isList(request)) {
+						continue;
+					}
+
+					for (byte[] datagram : server.getPresence().getDatagrams()) {
+						reply.clear();
+						reply.put(datagram);
+						reply.flip();
+						channel.send(reply, source);
+					}
+				} catch (ClosedChannelException e) {
+					break;
+				} catch (IOException e) {
+					// Sending to one client failed, but others may still
+					// want an answer.
+					if (!channel.isOpen()) {
+						break;
+					}
+				}
+			}
+
+			if (!closed) {
+				try {
+					server.getShell().writeLine("UDP listening thread is going down.");
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		private boolean isList(ByteBuffer b) {
+			if (b.remaining() != LIST.length) {
+				return false;
+			}
+			for (int i = 0; i < LIST.length; i++) {
+				if (b.get(i) != LIST[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -1,17 +1,36 @@
 package chatserver;
 
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A registered user, who may be logged in on several devices at once, each
+ * with a {@link Session} of its own.
+ * <p/>
+ * Sessions are kept in a copy-on-write set, as they change on login and
+ * logout only, while every broadcast iterates over them. Broadcasts thus
+ * never take the lock that serializes logins and logouts.
+ */
 public class User {
 	final String name;
-	final Set<Session> sessions = new HashSet<>();
+	final Set<Session> sessions = new CopyOnWriteArraySet<>();
+	private final Presence presence;
+
+	// Guarded by this.
+	private int peakDevices = 0;
+	private final AtomicLong logins = new AtomicLong();
 
 	String address = null;
 
-	public User(String name) {
+	/**
+	 * @param presence
+	 *            told whenever this user comes online or goes offline
+	 */
+	public User(String name, Presence presence) {
 		this.name = name;
+		this.presence = presence;
 	}
 
 	public boolean isOnline() {
@@ -24,12 +43,57 @@ public class User {
 		}
 	}
 
-	public boolean addSession(Session session) {
-		return sessions.add(session);
+	/**
+	 * Queues a DTO for all sessions of this user without waiting for it to
+	 * be written. Every session has an outbox of its own, so the devices
+	 * receive it in parallel and a slow one does not hold up the others.
+	 */
+	public void deliver(Object o) {
+		for (Session session : sessions) {
+			session.deliver(o);
+		}
+	}
+
+	public synchronized boolean addSession(Session session) {
+		boolean added = sessions.add(session);
+		if (added) {
+			logins.incrementAndGet();
+			peakDevices = Math.max(peakDevices, sessions.size());
+			if (sessions.size() == 1) {
+				presence.online(name);
+			}
+		}
+		return added;
+	}
+
+	public synchronized boolean removeSession(Session session) {
+		boolean removed = sessions.remove(session);
+		if (removed && sessions.isEmpty()) {
+			presence.offline(name);
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the number of devices this user is logged in on
+	 */
+	public int getDevices() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return the largest number of devices this user was logged in on at
+	 *         the same time
+	 */
+	public synchronized int getPeakDevices() {
+		return peakDevices;
 	}
 
-	public boolean removeSession(Session session) {
-		return sessions.remove(session);
+	/**
+	 * @return the number of sessions this user ever started
+	 */
+	public long getLogins() {
+		return logins.get();
 	}
 
 	public String getName() {
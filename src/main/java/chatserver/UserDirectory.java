@@ -0,0 +1,50 @@
+package chatserver;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * All users known to the chatserver, indexed by name.
+ * <p/>
+ * Lookups take constant time and iterating over {@link #getUsers()} is safe
+ * while other threads add users, so that handshakes, broadcasts and the
+ * commands listing users do not have to lock each other out.
+ */
+public class UserDirectory {
+	private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+
+	/**
+	 * @return {@code false} if there already is a user with the same name
+	 */
+	public boolean add(User user) {
+		return users.putIfAbsent(user.getName(), user) == null;
+	}
+
+	/**
+	 * Forgets a user. Sessions of the user stay open until they end.
+	 *
+	 * @return the removed user, or {@code null} if there was none
+	 */
+	public User remove(String name) {
+		return users.remove(name);
+	}
+
+	/**
+	 * @return the user with the given name, or {@code null} if there is none
+	 */
+	public User get(String name) {
+		return users.get(name);
+	}
+
+	/**
+	 * @return a live view of all users, safe to iterate concurrently
+	 */
+	public Collection<User> getUsers() {
+		return users.values();
+	}
+
+	public int size() {
+		return users.size();
+	}
+}
@@ -0,0 +1,179 @@
+package chatserver;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nameserver.INameserverForChatserver;
+import nameserver.Resolution;
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+
+/**
+ * Remembers the stubs of the nameservers of zones, keyed by their domain,
+ * e.g. "vienna.at".
+ * <p/>
+ * Names are resolved and registered directly at the nameserver of their
+ * zone, starting from the deepest zone we know a stub for, instead of
+ * letting the root nameserver walk down the zones on every call. A stub that
+ * fails because its nameserver is gone is forgotten and the call is retried
+ * once from the deepest zone we still know. Other failures are passed on
+ * unchanged, as the call might have had an effect already.
+ */
+class ZoneCache implements ResolverCache.Resolver {
+	private static class Zone {
+		final String domain;
+		final INameserverForChatserver stub;
+
+		Zone(String domain, INameserverForChatserver stub) {
+			this.domain = domain;
+			this.stub = stub;
+		}
+	}
+
+	private final Chatserver server;
+	private final ConcurrentMap<String, INameserverForChatserver> zones = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong invalidated = new AtomicLong();
+
+	ZoneCache(Chatserver server) {
+		this.server = server;
+	}
+
+	@Override
+	public Resolution resolve(String name) throws RemoteException {
+		for (int attempt = 0;; attempt++) {
+			Zone zone = null;
+			try {
+				zone = locate(domainOf(name));
+				Resolution resolution = zone.stub.resolve(relative(name, zone.domain));
+				return new Resolution(name, resolution.getAddress(), resolution.getZone(), resolution.getError());
+			} catch (RemoteException e) {
+				invalidate(zone, e, attempt);
+			}
+		}
+	}
+
+	void registerUser(String name, String address) throws RemoteException, AlreadyRegisteredException,
+			InvalidDomainException {
+		for (int attempt = 0;; attempt++) {
+			Zone zone = null;
+			try {
+				zone = locate(domainOf(name));
+				zone.stub.registerUser(relative(name, zone.domain), address);
+				return;
+			} catch (RemoteException e) {
+				invalidate(zone, e, attempt);
+			}
+		}
+	}
+
+	/**
+	 * Walks down from the deepest zone we know a stub for towards the given
+	 * domain, remembering the stubs on the way.
+	 *
+	 * @return the zone of the given domain, or the deepest one above it that
+	 *         exists
+	 */
+	private Zone locate(String domain) throws RemoteException {
+		String known = domain;
+		INameserverForChatserver stub = null;
+		while (!known.isEmpty() && (stub = zones.get(known)) == null) {
+			known = parentOf(known);
+		}
+
+		if (stub == null) {
+			stub = server.getRootNameserver();
+		} else {
+			hits.incrementAndGet();
+		}
+
+		Zone zone = new Zone(known, stub);
+		while (!zone.domain.equals(domain)) {
+			String label = relative(domain, zone.domain);
+			label = label.substring(label.lastIndexOf('.') + 1);
+
+			INameserverForChatserver next;
+			try {
+				next = zone.stub.getNameserver(label);
+			} catch (RemoteException e) {
+				invalidate(zone, e, 1);
+				throw e;
+			}
+			if (next == null) {
+				// The nameserver of the zone above will tell the caller.
+				break;
+			}
+
+			fetched.incrementAndGet();
+			zone = new Zone(zone.domain.isEmpty() ? label : label + "." + zone.domain, next);
+			zones.put(zone.domain, next);
+		}
+		return zone;
+	}
+
+	/**
+	 * Forgets the stub of the given zone, if any, after a call to it failed
+	 * because the stub is stale. The zone above might hand out the same stale
+	 * stub again, so we only retry once.
+	 *
+	 * @throws RemoteException
+	 *             the given exception if this was the retry, or if the call
+	 *             reached the nameserver and failed there, as it might have
+	 *             had an effect already
+	 */
+	private void invalidate(Zone zone, RemoteException e, int attempt) throws RemoteException {
+		if (!isStale(e)) {
+			throw e;
+		}
+		if (zone != null && !zone.domain.isEmpty() && zones.remove(zone.domain, zone.stub)) {
+			invalidated.incrementAndGet();
+		}
+		if (attempt > 0) {
+			throw e;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the given exception means that the nameserver
+	 *         behind a stub is gone, rather than that the call failed there
+	 */
+	private static boolean isStale(RemoteException e) {
+		return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException;
+	}
+
+	/**
+	 * @return the domain of the given name, i.e. everything after its first
+	 *         label, which is empty for the root zone
+	 */
+	private static String domainOf(String name) {
+		int dot = name.indexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1);
+	}
+
+	private static String parentOf(String domain) {
+		int dot = domain.indexOf('.');
+		return dot < 0 ? "" : domain.substring(dot + 1);
+	}
+
+	/**
+	 * @return the given name relative to the given domain, which must be a
+	 *         suffix of it
+	 */
+	private static String relative(String name, String domain) {
+		return domain.isEmpty() ? name : name.substring(0, name.length() - domain.length() - 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "Zones: %d known, %d fetched, %d invalidated%n"
+				+ "Calls starting below the root: %d", zones.size(), fetched.get(), invalidated.get(), hits.get());
+	}
+}
@@ -12,6 +12,8 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Reads commands from an {@link InputStream}, executes them and writes the
@@ -39,6 +41,11 @@ public class Shell implements Runnable, Closeable {
 	private BufferedReader in;
 	private Closeable readMonitor;
 
+	// Explicit locks rather than monitors, as these are shared by all
+	// threads of a component, which might be virtual ones.
+	private final Lock readLock = new ReentrantLock();
+	private final Lock writeLock = new ReentrantLock();
+
 	/**
 	 * Creates a new {@code Shell} instance.
 	 *
@@ -122,14 +129,19 @@ public class Shell implements Runnable, Closeable {
 	 */
 	public void writeLine(String line) throws IOException {
 		String now = DATE_FORMAT.get().format(new Date());
-		if (line.indexOf('\n') >= 0 && line.indexOf('\n') < line.length() - 1) {
-			write((String.format("%s %s:\n", now, name)).getBytes());
-			for (String l : line.split("[\\r\\n]+")) {
-				write((String.format("%s %s\n", now, l)).getBytes());
+		writeLock.lock();
+		try {
+			if (line.indexOf('\n') >= 0 && line.indexOf('\n') < line.length() - 1) {
+				write((String.format("%s %s:\n", now, name)).getBytes());
+				for (String l : line.split("[\\r\\n]+")) {
+					write((String.format("%s %s\n", now, l)).getBytes());
+				}
+			} else {
+				write((String.format("%s %s: %s%s", now, name, line,
+						line.endsWith("\n") ? "" : "\n")).getBytes());
 			}
-		} else {
-			write((String.format("%s %s: %s%s", now, name, line,
-					line.endsWith("\n") ? "" : "\n")).getBytes());
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
@@ -143,7 +155,12 @@ public class Shell implements Runnable, Closeable {
 	 *             if an I/O error occurs.
 	 */
 	public void write(byte[] bytes) throws IOException {
-		out.write(bytes);
+		writeLock.lock();
+		try {
+			out.write(bytes);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	/**
@@ -159,8 +176,11 @@ public class Shell implements Runnable, Closeable {
 	 *             if an I/O error occurs
 	 */
 	public String readLine() throws IOException {
-		synchronized (readMonitor) {
+		readLock.lock();
+		try {
 			return in.readLine();
+		} finally {
+			readLock.unlock();
 		}
 	}
 
@@ -181,11 +201,14 @@ public class Shell implements Runnable, Closeable {
 	 *             if an I/O error occurs
 	 */
 	public char[] read(int len) throws IOException {
-		synchronized (readMonitor) {
+		readLock.lock();
+		try {
 			len = len < 0 ? 4096 : len;
 			char[] cbuf = new char[len];
 			int read = in.read(cbuf, 0, len);
 			return read <= 0 ? EMPTY : Arrays.copyOfRange(cbuf, 0, read);
+		} finally {
+			readLock.unlock();
 		}
 	}
 
@@ -12,6 +12,7 @@ public class Buffer {
 	private final TimeUnit unit;
 
 	private Object o;
+	private boolean full = false;
 
 	public Buffer(final long time, final TimeUnit unit) {
 		this.time = time;
@@ -22,16 +23,52 @@ public class Buffer {
 		lock.lock();
 		try {
 			this.o = o;
+			full = true;
 			update.signal();
 		} finally {
 			lock.unlock();
 		}
 	}
 
-	public Object take() throws InterruptedException {
+	/**
+	 * Discards an object that was put but not taken, e.g. a reply that
+	 * arrived after its request timed out. Call before sending a request.
+	 */
+	public void clear() {
 		lock.lock();
 		try {
-			return update.await(time, unit) ? o : null;
+			full = false;
+			o = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the next object of the given type, unless one was put since
+	 * the last call. Objects of other types are discarded, as they cannot be
+	 * the reply we are waiting for. A {@code null} object, which the server
+	 * sends if it failed to answer, is returned as well.
+	 *
+	 * @return the object, or {@code null} if none arrived in time
+	 */
+	public <T> T take(Class<T> type) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = unit.toNanos(time);
+			// The reply may have been put before we started waiting.
+			while (!full || (o != null && !type.isInstance(o))) {
+				full = false;
+				o = null;
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = update.awaitNanos(nanos);
+			}
+			full = false;
+			T result = type.cast(o);
+			o = null;
+			return result;
 		} finally {
 			lock.unlock();
 		}
@@ -1,10 +1,13 @@
 package client;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
@@ -15,38 +18,53 @@ import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PublicKey;
-import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.bouncycastle.util.encoders.Base64;
 
 import cli.Command;
 import cli.Shell;
-import common.CipherInputStream;
-import common.CipherOutputStream;
+import common.Chunks;
+import common.CompressedInputStream;
+import common.CompressedOutputStream;
+import common.Compression;
+import common.DirectCipherInputStream;
+import common.DirectCipherOutputStream;
+import common.DTOInputStream;
+import common.DTOOutputStream;
+import common.Features;
+import common.HandshakeModes;
+import common.RecordCipher;
+import common.RecordInputStream;
+import common.RecordOutputStream;
+import common.Resumption;
+import common.X25519;
+import dto.JoinDTO;
+import dto.LeaveDTO;
 import dto.LoggedOutDTO;
 import dto.LogoutDTO;
 import dto.LookupDTO;
 import dto.AddressDTO;
 import dto.RegisteredDTO;
+import dto.RoomMessageDTO;
 import dto.MessageDTO;
 import util.Config;
+import util.CryptoContext;
 import util.HmacUtil;
 import util.Keys;
 import util.SecurityUtils;
+import util.ThreadPools;
 
 public class Client implements IClientCli, Runnable {
 	private static final String NEED_AUTH = "You need to be authenticated in order to issue this command.";
@@ -57,6 +75,14 @@ public class Client implements IClientCli, Runnable {
 	private final int udpPort;
 	private final String keyDir;
 	private final String chatserverKey;
+	private final String executorMode;
+	private final String features;
+	private final Set<String> modes;
+	private final Set<String> rooms = new TreeSet<>();
+	private final int compressionThreshold;
+	private final Compression.Stats compression = new Compression.Stats();
+	private Compression.Compressor compressor = null;
+	private Compression.Decompressor decompressor = null;
 
 	private String lastPublicMessage = null;
 
@@ -68,11 +94,19 @@ public class Client implements IClientCli, Runnable {
 
 	private final ConcurrentHashMap<String, String> myContacts = new ConcurrentHashMap<String, String>();
 
-	private ObjectOutputStream oos = null;
-	private ObjectInputStream ois = null;
+	private ObjectOutput oos = null;
+	private ObjectInput ois = null;
 
 	private HmacUtil hmac;
 
+	private CryptoContext crypto = null;
+	private String cryptoUsername = null;
+	private PublicKey serverKey = null;
+
+	// Lets the user of the CryptoContext resume their session.
+	private String ticket = null;
+	private byte[] resumptionSecret = null;
+
 	private final Buffer buffer = new Buffer(5, TimeUnit.SECONDS);
 
 	private String username = null;
@@ -91,6 +125,8 @@ public class Client implements IClientCli, Runnable {
 		shell = new Shell(componentName, userRequestStream, userResponseStream);
 		shell.register(this);
 
+		SecurityUtils.configureProviders(config);
+
 		hmac = new HmacUtil(config.getString("hmac.key"));
 
 		hostname = config.getString("chatserver.host");
@@ -99,6 +135,16 @@ public class Client implements IClientCli, Runnable {
 
 		keyDir = config.getString("keys.dir");
 		chatserverKey = config.getString("chatserver.key");
+
+		executorMode = config.getString("executor.mode", ThreadPools.PLATFORM);
+
+		// Protocol features to offer to the server.
+		features = config.getString("handshake.features", Features.SUPPORTED);
+		modes = Features.parse(config.getString("handshake.modes", HandshakeModes.SUPPORTED));
+
+		// With the deflate feature, messages shorter than this many bytes
+		// are still sent raw.
+		compressionThreshold = config.getInt("compression.threshold", Compression.DEFAULT_THRESHOLD);
 	}
 
 	private boolean connect() {
@@ -130,6 +176,9 @@ public class Client implements IClientCli, Runnable {
 		// We're tearing down, so break authentication.
 		username = null;
 
+		// The server forgets our rooms together with the session.
+		rooms.clear();
+
 		// If we're still connected, disconnect the socket.
 		// This will likely interrupt the listener thread,
 		// which blocks on reading from ois most of the time
@@ -153,6 +202,14 @@ public class Client implements IClientCli, Runnable {
 			listenThread = null;
 		}
 
+		// The socket is closed, so nothing is being written anymore.
+		if (compressor != null) {
+			compressor.close();
+			decompressor.close();
+			compressor = null;
+			decompressor = null;
+		}
+
 		// If there's a private server, instruct it to shut down
 		// it's socket and thread pool.
 		if (server != null) {
@@ -185,6 +242,7 @@ public class Client implements IClientCli, Runnable {
 			return NEED_AUTH;
 
 		if (oos != null) {
+			buffer.clear();
 			oos.writeObject(new LogoutDTO());
 			oos.flush();
 		}
@@ -192,7 +250,7 @@ public class Client implements IClientCli, Runnable {
 		LoggedOutDTO dto = null;
 
 		try {
-			dto = (LoggedOutDTO) buffer.take();
+			dto = buffer.take(LoggedOutDTO.class);
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -215,6 +273,60 @@ public class Client implements IClientCli, Runnable {
 		return null;
 	}
 
+	/**
+	 * Subscribes to the messages posted to a room.
+	 */
+	@Command
+	public String join(String room) throws IOException {
+		if (username == null)
+			return NEED_AUTH;
+
+		if (!rooms.add(room)) {
+			return "Already joined " + room + ".";
+		}
+		oos.writeObject(new JoinDTO(room));
+		oos.flush();
+		return "Joined " + room + ".";
+	}
+
+	@Command
+	public String leave(String room) throws IOException {
+		if (username == null)
+			return NEED_AUTH;
+
+		if (!rooms.remove(room)) {
+			return "Not in " + room + ".";
+		}
+		oos.writeObject(new LeaveDTO(room));
+		oos.flush();
+		return "Left " + room + ".";
+	}
+
+	/**
+	 * Sends a message to the other members of a room we joined.
+	 */
+	@Command
+	public String post(String room, String message) throws IOException {
+		if (username == null)
+			return NEED_AUTH;
+
+		if (!rooms.contains(room)) {
+			return "Join " + room + " first.";
+		}
+		oos.writeObject(new RoomMessageDTO(room, message));
+		oos.flush();
+		return null;
+	}
+
+	@Command
+	public String rooms() {
+		StringBuilder sb = new StringBuilder();
+		for (String room : rooms) {
+			sb.append(room).append('\n');
+		}
+		return sb.length() == 0 ? "No rooms joined." : sb.toString();
+	}
+
 	@Override
 	@Command
 	public String list() throws IOException {
@@ -227,12 +339,21 @@ public class Client implements IClientCli, Runnable {
 		DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, udpPort);
 		datagramSocket.send(packet);
 
-		buffer = new byte[1024];
-		packet = new DatagramPacket(buffer, buffer.length);
-		datagramSocket.receive(packet);
+		// Long lists arrive in several chunks.
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		buffer = new byte[Chunks.MAX_DATAGRAM];
+		try {
+			do {
+				packet = new DatagramPacket(buffer, buffer.length);
+				datagramSocket.receive(packet);
+			} while (!assembler.add(packet.getData(), packet.getOffset(), packet.getLength()));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Received malformed list.", e);
+		} finally {
+			datagramSocket.close();
+		}
 
-		datagramSocket.close();
-		return new String(packet.getData(), packet.getOffset(), packet.getLength());
+		return new String(assembler.get(), StandardCharsets.UTF_8);
 	}
 
 	@Override
@@ -300,13 +421,14 @@ public class Client implements IClientCli, Runnable {
 	}
 
 	private boolean performLookup(String username) throws IOException {
+		buffer.clear();
 		oos.writeObject(new LookupDTO(username));
 		oos.flush();
 
 		AddressDTO dto = null;
 
 		try {
-			dto = (AddressDTO) buffer.take();
+			dto = buffer.take(AddressDTO.class);
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -353,17 +475,18 @@ public class Client implements IClientCli, Runnable {
 			return "Unkown host.";
 		}
 
-		server = new PrivateServer(addr, uri.getPort(), shell, hmac);
+		server = new PrivateServer(addr, uri.getPort(), shell, hmac, executorMode);
 		serverThread = new Thread(server);
 		serverThread.start();
 
+		buffer.clear();
 		oos.writeObject(new AddressDTO(privateAddress));
 		oos.flush();
 
 		RegisteredDTO dto = null;
 
 		try {
-			dto = (RegisteredDTO) buffer.take();
+			dto = buffer.take(RegisteredDTO.class);
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -386,6 +509,11 @@ public class Client implements IClientCli, Runnable {
 		return lastPublicMessage;
 	}
 
+	@Command
+	public String compression() {
+		return compression.toString();
+	}
+
 	@Override
 	@Command
 	public String exit() throws IOException {
@@ -421,82 +549,106 @@ public class Client implements IClientCli, Runnable {
 
 		// Initialize key material. We'll need the public key of the server
 		// to encrypt the first message, and our own private key to decrypt
-		// the second message.
-		PrivateKey priv = Keys.readPrivatePEM(privateKeyFile);
-		PublicKey pub = Keys.readPublicPEM(publicKeyFile);
+		// the second message. Both are kept for the next time we
+		// authenticate.
+		if (crypto == null || !username.equals(cryptoUsername)) {
+			crypto = new CryptoContext(Keys.readPrivatePEM(privateKeyFile));
+			cryptoUsername = username;
+			ticket = null;
+		}
+		if (serverKey == null) {
+			serverKey = Keys.readPublicPEM(publicKeyFile);
+		}
 
 		InputStream is = socket.getInputStream();
 
-		Cipher cipher = null;
-		try {
-			cipher = Cipher.getInstance(SecurityUtils.ASYMMETRIC_SPEC);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Skip the full handshake if we still have a ticket from our last
+		// session.
+		if (ticket != null) {
+			String result = resume(username, is);
+			if (result != null) {
+				return result;
+			}
 		}
 
-		try {
-			cipher.init(Cipher.ENCRYPT_MODE, pub);
-		} catch (InvalidKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Offer all our modes at once and let the server pick one, so that we
+		// do not pay a round trip for each mode it turns down.
+		Set<String> offeredModes = new LinkedHashSet<>(modes);
+		KeyPair keyPair = null;
+		if (offeredModes.contains(HandshakeModes.X25519)) {
+			try {
+				keyPair = X25519.generateKeyPair();
+			} catch (GeneralSecurityException e) {
+				// Not supported by this runtime.
+				offeredModes.remove(HandshakeModes.X25519);
+			}
 		}
+		offeredModes.retainAll(Features.parse(HandshakeModes.SUPPORTED));
+		if (offeredModes.isEmpty()) {
+			return "Handshake failed (no common mode).";
+		}
+
+		String offered = Features.format(Features.parse(features));
+		String clientKey = keyPair == null ? HandshakeModes.ABSENT : X25519.encode(keyPair.getPublic());
+		String clientNonce = SecurityUtils.randomBytesEncoded(32);
 
 		// Obtain some random bytes used as challenge. We'll encrypt this and
-		// the server
-		// will have to send it back so we can be sure that the server decrypted
-		// the
-		// challenge using the private key that matches the public key we have.
+		// the server will have to send it back so we can be sure that the
+		// server decrypted the challenge using the private key that matches
+		// the public key we have.
 		String challenge = SecurityUtils.randomBytesEncoded(32);
 
-		// Construct the first message.
-		byte[] message = ("!authenticate " + username + " " + challenge).getBytes();
-
-		// Encrypt and encode the first message.
-		try {
-			message = Base64.encode(cipher.doFinal(message));
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Construct the first message, then encrypt and encode it.
+		String first = HandshakeModes.ABSENT;
+		if (offeredModes.contains(HandshakeModes.RSA)) {
+			try {
+				first = new String(Base64.encode(CryptoContext.encrypt(serverKey,
+						("!authenticate " + username + " " + challenge + " " + offered).getBytes())),
+						StandardCharsets.US_ASCII);
+			} catch (GeneralSecurityException e) {
+				return "Handshake failed (" + e.getMessage() + ").";
+			}
 		}
 
 		// Send off the first message.
-		socket.getOutputStream().write(message);
-
-		// Now prepare to receive the second message, so set up everything for
-		// decryption.
-		try {
-			cipher.init(Cipher.DECRYPT_MODE, priv);
-		} catch (InvalidKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		socket.getOutputStream().write((HandshakeModes.HELLO + " " + Features.format(offeredModes) + " " + username
+				+ " " + clientKey + " " + clientNonce + " " + offered + " " + first + "\n")
+				.getBytes(StandardCharsets.UTF_8));
+
+		// Receive the second message, which is a line in X25519 mode and
+		// Base64 in RSA mode.
+		String line = readLine(is);
+		if (line.equals(HandshakeModes.RETRY)) {
+			return "Handshake failed (no common mode).";
+		}
+		if (!line.isEmpty() && HandshakeModes.isLine(line.charAt(0))) {
+			if (keyPair == null) {
+				return "Handshake failed (malformed message).";
+			}
+			return agree(username, is, keyPair, clientNonce, offered, line);
 		}
-
-		// Receive the second message.
-		message = new byte[684];
-		int messageLen = 0;
-		try {
-			messageLen = is.read(message);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (first.equals(HandshakeModes.ABSENT)) {
+			return "Handshake failed (malformed message).";
 		}
 
 		// Decode and decrypt the second message.
-		message = Base64.decode(Arrays.copyOfRange(message, 0, messageLen));
+		byte[] message;
 		try {
-			message = cipher.doFinal(message);
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			message = crypto.decrypt(Base64.decode(line));
+		} catch (GeneralSecurityException | RuntimeException e) {
+			return "Handshake failed (" + e.getMessage() + ").";
 		}
 
 		String[] params = new String(message).split(" ");
 
-		if (params == null || params.length != 5 || !params[0].equals("!ok")) {
+		if (params.length < 5 || params.length > 7 || !params[0].equals("!ok")) {
 			return "Handshake failed (malformed message).";
 		}
 
+		// The sixth parameter lists the features the server accepted, the
+		// seventh is a ticket to resume the session with.
+		Set<String> accepted = Features.parse(params.length >= 6 ? params[5] : null);
+
 		if (!params[1].equals(challenge)) {
 			return "Handshake failed (wrong challenge: " + params[1] + " != " + challenge + ").";
 		}
@@ -509,51 +661,75 @@ public class Client implements IClientCli, Runnable {
 		byte[] secret = Base64.decode(params[3].getBytes());
 		byte[] iv = Base64.decode(params[4].getBytes());
 
-		// Override cipher, as communication is symmetrically encrypted from
-		// this
-		// point on.
-		try {
-			cipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		ticket = null;
+		if (params.length == 7) {
+			try {
+				resumptionSecret = Resumption.resumptionSecret(secret);
+				ticket = params[6];
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+			}
 		}
 
-		try {
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
-		} catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		return establish(username, is, thirdMessage(challenge, secret, iv), secret, iv, accepted);
+	}
 
+	/**
+	 * @return the server's challenge encrypted with the session key, proving
+	 *         that we know it
+	 */
+	private static byte[] thirdMessage(String challenge, byte[] secret, byte[] iv) {
 		try {
-			message = Base64.encode(cipher.doFinal(challenge.getBytes()));
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
+			return Base64.encode(CryptoContext.symmetric(Cipher.ENCRYPT_MODE, secret, iv, challenge.getBytes()));
+		} catch (GeneralSecurityException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+			return null;
 		}
+	}
 
+	/**
+	 * Sends the third message and sets up the encrypted streams.
+	 */
+	private String establish(String username, InputStream is, byte[] message, byte[] secret, byte[] iv,
+			Set<String> accepted) throws IOException {
 		// Send off the third message. Handshake is completed.
 		socket.getOutputStream().write(message);
 
-		oos = new ObjectOutputStream(new CipherOutputStream(socket.getOutputStream(), cipher));
-
-		Cipher decryptionCipher = null;
+		// Communication is symmetrically encrypted from this point on, either
+		// as one stream or as records. The cipher streams write in pieces,
+		// which go out together on flush.
+		OutputStream os = new BufferedOutputStream(socket.getOutputStream());
 		try {
-			decryptionCipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			if (accepted.contains(Features.GCM)) {
+				os = new RecordOutputStream(os, new RecordCipher(Cipher.ENCRYPT_MODE, secret, true));
+				is = new RecordInputStream(is, new RecordCipher(Cipher.DECRYPT_MODE, secret, false));
+			} else {
+				os = new DirectCipherOutputStream(os, CryptoContext.newSymmetricCipher(
+						Cipher.ENCRYPT_MODE, secret, iv));
+				is = new DirectCipherInputStream(is, CryptoContext.newSymmetricCipher(Cipher.DECRYPT_MODE, secret, iv));
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not set up session ciphers.", e);
 		}
 
-		try {
-			decryptionCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
-		} catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (accepted.contains(Features.DEFLATE)) {
+			compressor = new Compression.Compressor(compressionThreshold, compression);
+			decompressor = new Compression.Decompressor(compression);
+			os = new CompressedOutputStream(os, compressor);
+			is = new CompressedInputStream(is, decompressor);
 		}
 
-		ois = new ObjectInputStream(new CipherInputStream(is, decryptionCipher));
+		if (accepted.contains(Features.BINARY)) {
+			oos = new DTOOutputStream(os);
+			ois = new DTOInputStream(is);
+		} else {
+			oos = new ObjectOutputStream(os);
+			// Records are only sent on flush, and the peer waits for our
+			// header before it reads anything.
+			oos.flush();
+			ois = new ObjectInputStream(is);
+		}
 
 		listenThread = new Thread(new Listener());
 		listenThread.start();
@@ -563,6 +739,112 @@ public class Client implements IClientCli, Runnable {
 		return "Successfully established secure connection with server!";
 	}
 
+	/**
+	 * Tries to resume our last session with the ticket we got for it.
+	 *
+	 * @return {@code null} if the server turned the ticket down and expects
+	 *         a full handshake instead
+	 */
+	private String resume(String username, InputStream is) throws IOException {
+		String clientNonce = SecurityUtils.randomBytesEncoded(32);
+		socket.getOutputStream().write((Resumption.RESUME + " " + ticket + " " + clientNonce + " "
+				+ Features.format(Features.parse(features)) + "\n").getBytes(StandardCharsets.US_ASCII));
+
+		String line = readLine(is);
+		if (line.equals(HandshakeModes.RETRY)) {
+			ticket = null;
+			return null;
+		}
+
+		String[] params = line.split(" ");
+		if (params.length != 5 || !params[0].equals("!ok")) {
+			return "Handshake failed (malformed message).";
+		}
+
+		String serverNonce = params[1];
+		Set<String> accepted = Features.parse(params[2]);
+
+		byte[] secret;
+		byte[] iv;
+		try {
+			byte[] proof = Resumption.proof(resumptionSecret, clientNonce, serverNonce, params[2], params[3]);
+			if (!MessageDigest.isEqual(proof, Base64.decode(params[4]))) {
+				return "Handshake failed (server could not open ticket).";
+			}
+
+			secret = Resumption.sessionKey(resumptionSecret, clientNonce, serverNonce);
+			iv = Resumption.sessionIv(resumptionSecret, clientNonce, serverNonce);
+
+			// Keep the fresh ticket for the next time.
+			ticket = params[3];
+			resumptionSecret = Resumption.resumptionSecret(secret);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			return "Handshake failed (" + e.getMessage() + ").";
+		}
+
+		return establish(username, is, thirdMessage(serverNonce, secret, iv), secret, iv, accepted);
+	}
+
+	/**
+	 * Agrees on the session key using X25519, authenticating with our RSA
+	 * key, once the server replied to our offer with the given line.
+	 */
+	private String agree(String username, InputStream is, KeyPair keyPair, String clientNonce, String offered,
+			String line) throws IOException {
+		String clientKey = X25519.encode(keyPair.getPublic());
+		String[] params = line.split(" ");
+		if (params.length < 5 || params.length > 6 || !params[0].equals("!ok")) {
+			return "Handshake failed (malformed message).";
+		}
+
+		String serverNonce = params[3];
+		Set<String> accepted = Features.parse(params[4]);
+
+		byte[] secret;
+		byte[] iv;
+		byte[] message;
+		try {
+			if (!CryptoContext.verify(serverKey, X25519.serverKeyStatement(params[1]), Base64.decode(params[2]))) {
+				return "Handshake failed (server could not prove its identity).";
+			}
+
+			byte[] shared = X25519.agree(keyPair.getPrivate(), X25519.decode(params[1]));
+			secret = X25519.sessionKey(shared, clientNonce, serverNonce);
+			iv = X25519.sessionIv(shared, clientNonce, serverNonce);
+
+			// Prove who we are by signing everything exchanged so far,
+			// followed by the usual third message.
+			byte[] signature = crypto.sign(X25519.transcript(username, clientKey, clientNonce, offered, params[1],
+					serverNonce, params[4]));
+			message = (new String(Base64.encode(signature)) + " " + new String(thirdMessage(serverNonce, secret, iv)) + "\n")
+					.getBytes(StandardCharsets.US_ASCII);
+
+			ticket = null;
+			if (params.length == 6) {
+				resumptionSecret = Resumption.resumptionSecret(secret);
+				ticket = params[5];
+			}
+		} catch (GeneralSecurityException | RuntimeException e) {
+			return "Handshake failed (" + e.getMessage() + ").";
+		}
+
+		return establish(username, is, message, secret, iv, accepted);
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int b; (b = is.read()) != '\n';) {
+			if (b == -1) {
+				throw new EOFException();
+			}
+			if (sb.length() >= HandshakeModes.MAX_LINE_LENGTH) {
+				throw new IOException("Line too long.");
+			}
+			sb.append((char) b);
+		}
+		return sb.toString();
+	}
+
 	class Listener implements Runnable {
 		@Override
 		public void run() {
@@ -577,6 +859,12 @@ public class Client implements IClientCli, Runnable {
 						return;
 					}
 
+					if (o instanceof RoomMessageDTO) {
+						RoomMessageDTO message = (RoomMessageDTO) o;
+						shell.writeLine("[" + message.getRoom() + "] " + message.getMessage());
+						continue;
+					}
+
 					if (!(o instanceof MessageDTO)) {
 						buffer.put(o);
 						continue;
@@ -7,10 +7,10 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import cli.Shell;
 import util.HmacUtil;
+import util.ThreadPools;
 
 public class PrivateServer implements Runnable {
 	private final Shell shell;
@@ -18,15 +18,21 @@ public class PrivateServer implements Runnable {
 	private final int port;
 	private final HmacUtil hmac;
 
-	private final ExecutorService threadPool = Executors.newCachedThreadPool();
+	private final ExecutorService threadPool;
 
 	private ServerSocket serverSocket;
 
-	public PrivateServer(InetAddress address, int port, Shell shell, HmacUtil hmac) {
+	/**
+	 * @param executorMode
+	 *            the kind of threads to handle incoming messages on, see
+	 *            {@link ThreadPools}
+	 */
+	public PrivateServer(InetAddress address, int port, Shell shell, HmacUtil hmac, String executorMode) {
 		this.address = address;
 		this.port = port;
 		this.shell = shell;
 		this.hmac = hmac;
+		this.threadPool = ThreadPools.newTaskExecutor(executorMode);
 	}
 
 	public void run() {
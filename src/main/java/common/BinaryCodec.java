@@ -0,0 +1,250 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+import dto.AddressDTO;
+import dto.JoinDTO;
+import dto.LeaveDTO;
+import dto.LoggedOutDTO;
+import dto.LogoutDTO;
+import dto.LookupDTO;
+import dto.MessageDTO;
+import dto.RegisteredDTO;
+import dto.RoomMessageDTO;
+
+/**
+ * Compact binary encoding of the DTOs exchanged between client and
+ * chatserver.
+ * <p/>
+ * Every DTO is sent as a frame, consisting of the length of its body as a
+ * varint, followed by the body. The body starts with a type tag and carries
+ * the fields of the DTO in declaration order. Strings are encoded as their
+ * length in UTF-8 plus one as a varint, followed by the UTF-8 bytes, so that
+ * a zero length denotes {@code null}.
+ */
+public final class BinaryCodec {
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_MESSAGE = 1;
+	private static final byte TAG_LOOKUP = 2;
+	private static final byte TAG_ADDRESS = 3;
+	private static final byte TAG_REGISTERED = 4;
+	private static final byte TAG_LOGOUT = 5;
+	private static final byte TAG_LOGGED_OUT = 6;
+	private static final byte TAG_JOIN = 7;
+	private static final byte TAG_LEAVE = 8;
+	private static final byte TAG_ROOM_MESSAGE = 9;
+
+	private static final int MAX_VARINT_LENGTH = 5;
+
+	/**
+	 * Upper bound for the length of a frame body, to not allocate arbitrary
+	 * amounts of memory for a corrupt or hostile length prefix.
+	 */
+	public static final int MAX_FRAME_LENGTH = 1 << 24;
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * @return the frame for the given DTO, including its length prefix
+	 * @throws NotSerializableException
+	 *             if there is no encoding for the type of the given object
+	 */
+	public static byte[] encode(Object o) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(32);
+
+		if (o == null) {
+			body.write(TAG_NULL);
+		} else if (o instanceof MessageDTO) {
+			body.write(TAG_MESSAGE);
+			writeString(body, ((MessageDTO) o).getMessage());
+		} else if (o instanceof LookupDTO) {
+			body.write(TAG_LOOKUP);
+			writeString(body, ((LookupDTO) o).getUsername());
+		} else if (o instanceof AddressDTO) {
+			body.write(TAG_ADDRESS);
+			writeString(body, ((AddressDTO) o).getAddress());
+		} else if (o instanceof RegisteredDTO) {
+			body.write(TAG_REGISTERED);
+		} else if (o instanceof LogoutDTO) {
+			body.write(TAG_LOGOUT);
+		} else if (o instanceof LoggedOutDTO) {
+			body.write(TAG_LOGGED_OUT);
+		} else if (o instanceof JoinDTO) {
+			body.write(TAG_JOIN);
+			writeString(body, ((JoinDTO) o).getRoom());
+		} else if (o instanceof LeaveDTO) {
+			body.write(TAG_LEAVE);
+			writeString(body, ((LeaveDTO) o).getRoom());
+		} else if (o instanceof RoomMessageDTO) {
+			body.write(TAG_ROOM_MESSAGE);
+			writeString(body, ((RoomMessageDTO) o).getRoom());
+			writeString(body, ((RoomMessageDTO) o).getMessage());
+		} else {
+			throw new NotSerializableException(o.getClass().getName());
+		}
+
+		int n = body.size();
+		byte[] frame = new byte[varintLength(n) + n];
+		int off = writeVarint(frame, 0, n);
+		System.arraycopy(body.toByteArray(), 0, frame, off, n);
+		return frame;
+	}
+
+	/**
+	 * Decodes the body of a frame, i.e. without the length prefix.
+	 *
+	 * @throws StreamCorruptedException
+	 *             if the body is malformed
+	 */
+	public static Object decode(byte[] b, int off, int len) throws StreamCorruptedException {
+		if (len < 1) {
+			throw new StreamCorruptedException("Empty frame.");
+		}
+
+		Reader r = new Reader(b, off + 1, off + len);
+		Object o;
+
+		switch (b[off]) {
+		case TAG_NULL:
+			o = null;
+			break;
+		case TAG_MESSAGE:
+			o = new MessageDTO(r.string());
+			break;
+		case TAG_LOOKUP:
+			o = new LookupDTO(r.string());
+			break;
+		case TAG_ADDRESS:
+			o = new AddressDTO(r.string());
+			break;
+		case TAG_REGISTERED:
+			o = new RegisteredDTO();
+			break;
+		case TAG_LOGOUT:
+			o = new LogoutDTO();
+			break;
+		case TAG_LOGGED_OUT:
+			o = new LoggedOutDTO();
+			break;
+		case TAG_JOIN:
+			o = new JoinDTO(r.string());
+			break;
+		case TAG_LEAVE:
+			o = new LeaveDTO(r.string());
+			break;
+		case TAG_ROOM_MESSAGE:
+			o = new RoomMessageDTO(r.string(), r.string());
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown type tag " + b[off] + ".");
+		}
+
+		if (r.pos != r.limit) {
+			throw new StreamCorruptedException("Trailing bytes in frame.");
+		}
+		return o;
+	}
+
+	/**
+	 * Determines the length of the frame starting at the given offset.
+	 *
+	 * @return the length of the whole frame including its length prefix, or
+	 *         {@code -1} if it is not complete yet
+	 * @throws StreamCorruptedException
+	 *             if the length prefix is malformed
+	 */
+	public static int frameLength(byte[] b, int off, int len) throws StreamCorruptedException {
+		int value = 0;
+		for (int i = 0; i < Math.min(len, MAX_VARINT_LENGTH); i++) {
+			value |= (b[off + i] & 0x7f) << (7 * i);
+			if ((b[off + i] & 0x80) == 0) {
+				if (value < 0 || value > MAX_FRAME_LENGTH) {
+					throw new StreamCorruptedException("Invalid frame length " + value + ".");
+				}
+				int total = i + 1 + value;
+				return total <= len ? total : -1;
+			}
+		}
+		if (len >= MAX_VARINT_LENGTH) {
+			throw new StreamCorruptedException("Frame length too long.");
+		}
+		return -1;
+	}
+
+	static int varintLength(int value) {
+		int n = 1;
+		while ((value >>>= 7) != 0) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the offset just after the varint
+	 */
+	static int writeVarint(byte[] b, int off, int value) {
+		while ((value & ~0x7f) != 0) {
+			b[off++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		b[off++] = (byte) value;
+		return off;
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		if (s == null) {
+			out.write(0);
+			return;
+		}
+		byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+		byte[] prefix = new byte[MAX_VARINT_LENGTH];
+		out.write(prefix, 0, writeVarint(prefix, 0, utf.length + 1));
+		out.write(utf, 0, utf.length);
+	}
+
+	private static final class Reader {
+		private final byte[] b;
+		private final int limit;
+		private int pos;
+
+		Reader(byte[] b, int pos, int limit) {
+			this.b = b;
+			this.pos = pos;
+			this.limit = limit;
+		}
+
+		int varint() throws StreamCorruptedException {
+			int value = 0;
+			for (int i = 0; i < MAX_VARINT_LENGTH; i++) {
+				if (pos >= limit) {
+					throw new StreamCorruptedException("Truncated varint.");
+				}
+				byte x = b[pos++];
+				value |= (x & 0x7f) << (7 * i);
+				if ((x & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new StreamCorruptedException("Varint too long.");
+		}
+
+		String string() throws StreamCorruptedException {
+			int n = varint();
+			if (n == 0) {
+				return null;
+			}
+			n--;
+			if (n < 0 || n > limit - pos) {
+				throw new StreamCorruptedException("Truncated string.");
+			}
+			String s = new String(b, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits replies that do not fit into one datagram into sequenced chunks and
+ * puts them back together.
+ * <p/>
+ * A reply that fits is sent as is. Otherwise every chunk starts with a header
+ * line {@code !chunk <seq> <total>}, where {@code seq} counts from zero, and
+ * continues with the next part of the reply's bytes. Chunks may arrive in any
+ * order, duplicates are ignored.
+ */
+public final class Chunks {
+	/**
+	 * Stays below the typical Ethernet MTU of 1500 bytes minus IP and UDP
+	 * headers, so that chunks are not fragmented.
+	 */
+	public static final int MAX_DATAGRAM = 1400;
+
+	/**
+	 * Upper bound for the length of a reply that is put back together, to
+	 * not allocate arbitrary amounts of memory for a spoofed chunk header.
+	 */
+	public static final int MAX_REPLY = 1 << 20;
+
+	private static final String HEADER = "!chunk ";
+
+	/**
+	 * Headers are at most this long, with two numbers of up to ten digits.
+	 */
+	private static final int MAX_HEADER_LENGTH = HEADER.length() + 2 * 10 + 2;
+
+	/**
+	 * How many chunks a reply of at most {@link #MAX_REPLY} bytes is split
+	 * into at most, given that every chunk but the last carries at least
+	 * {@link #MAX_DATAGRAM} bytes minus the longest header.
+	 */
+	static final int MAX_CHUNKS = (MAX_REPLY + MAX_DATAGRAM - MAX_HEADER_LENGTH - 1)
+			/ (MAX_DATAGRAM - MAX_HEADER_LENGTH);
+
+	private Chunks() {
+	}
+
+	/**
+	 * @return the datagrams to send for the given reply
+	 */
+	public static byte[][] split(byte[] reply, int max) {
+		if (reply.length <= max) {
+			return new byte[][] { reply };
+		}
+
+		// Reserve room for the longest header possible with this many
+		// chunks. Headers for small sequence numbers are shorter, so the
+		// estimate is safe.
+		int total = 1;
+		int payload;
+		while (true) {
+			payload = max - header(total - 1, total).length;
+			if (payload <= 0) {
+				throw new IllegalArgumentException("Datagrams of " + max + " bytes are too small.");
+			}
+			int needed = (reply.length + payload - 1) / payload;
+			if (needed <= total) {
+				break;
+			}
+			total = needed;
+		}
+
+		byte[][] chunks = new byte[total][];
+		for (int seq = 0; seq < total; seq++) {
+			byte[] header = header(seq, total);
+			int off = seq * payload;
+			int len = Math.min(payload, reply.length - off);
+			chunks[seq] = Arrays.copyOf(header, header.length + len);
+			System.arraycopy(reply, off, chunks[seq], header.length, len);
+		}
+		return chunks;
+	}
+
+	private static byte[] header(int seq, int total) {
+		return (HEADER + seq + " " + total + "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Collects the datagrams of one reply.
+	 */
+	public static final class Assembler {
+		private byte[][] chunks;
+		private int missing = -1;
+		private byte[] whole;
+
+		/**
+		 * @return {@code true} once the reply is complete
+		 * @throws IllegalArgumentException
+		 *             if the datagram is not a valid chunk of this reply
+		 */
+		public boolean add(byte[] b, int off, int len) {
+			if (whole != null) {
+				return true;
+			}
+
+			String start = new String(b, off, Math.min(len, 64), StandardCharsets.US_ASCII);
+			if (!start.startsWith(HEADER)) {
+				if (chunks != null) {
+					throw new IllegalArgumentException("Expected a chunk.");
+				}
+				whole = Arrays.copyOfRange(b, off, off + len);
+				return true;
+			}
+
+			int eol = start.indexOf('\n');
+			if (eol == -1) {
+				throw new IllegalArgumentException("Malformed chunk header.");
+			}
+			String[] parts = start.substring(HEADER.length(), eol).split(" ");
+			int seq;
+			int total;
+			try {
+				seq = Integer.parseInt(parts[0]);
+				total = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Malformed chunk header.", e);
+			}
+
+			if (chunks == null) {
+				if (total < 1 || total > MAX_CHUNKS) {
+					throw new IllegalArgumentException("Invalid number of chunks.");
+				}
+				chunks = new byte[total][];
+				missing = total;
+			}
+			if (total != chunks.length || seq < 0 || seq >= total) {
+				throw new IllegalArgumentException("Chunk does not belong to this reply.");
+			}
+
+			if (chunks[seq] == null) {
+				chunks[seq] = Arrays.copyOfRange(b, off + eol + 1, off + len);
+				missing--;
+			}
+			if (missing > 0) {
+				return false;
+			}
+
+			int n = 0;
+			for (byte[] chunk : chunks) {
+				n += chunk.length;
+			}
+			whole = new byte[n];
+			n = 0;
+			for (byte[] chunk : chunks) {
+				System.arraycopy(chunk, 0, whole, n, chunk.length);
+				n += chunk.length;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the complete reply, or {@code null} if chunks are missing
+		 */
+		public byte[] get() {
+			return whole;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads blocks and returns their content. See {@link Compression}.
+ */
+public class CompressedInputStream extends InputStream {
+	private final InputStream is;
+	private final Compression.Decompressor decompressor;
+
+	private byte[] block = new byte[512];
+	private byte[] buffer = new byte[512];
+	private int from = 0;
+	private int to = 0;
+
+	public CompressedInputStream(InputStream is, Compression.Decompressor decompressor) {
+		this.is = is;
+		this.decompressor = decompressor;
+	}
+
+	/**
+	 * Reads and decompresses the next block.
+	 *
+	 * @return {@code false} at the end of the stream
+	 */
+	private boolean next() throws IOException {
+		// Read the header a byte at a time, as we do not know its length.
+		int n = 0;
+		int header;
+		while ((header = Compression.headerLength(block, 0, n)) == -1) {
+			int b = is.read();
+			if (b == -1) {
+				if (n == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated block.");
+			}
+			block[n++] = (byte) b;
+		}
+		int length = header + Compression.payloadLength(block, 0, n);
+
+		if (block.length < length) {
+			block = Arrays.copyOf(block, length);
+		}
+		while (n < length) {
+			int read = is.read(block, n, length - n);
+			if (read == -1) {
+				throw new EOFException("Truncated block.");
+			}
+			n += read;
+		}
+
+		int content = Compression.contentLength(block, 0, length);
+		if (buffer.length < content) {
+			buffer = new byte[Math.max(content, 2 * buffer.length)];
+		}
+		to = decompressor.decompress(block, 0, length, buffer, 0);
+		from = 0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (from == to) {
+			if (!next()) {
+				return -1;
+			}
+		}
+		return buffer[from++] & 0xff;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len <= 0) {
+			return 0;
+		}
+		while (from == to) {
+			if (!next()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, to - from);
+		System.arraycopy(buffer, from, b, off, n);
+		from += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return to - from;
+	}
+
+	@Override
+	public void close() throws IOException {
+		decompressor.close();
+		is.close();
+	}
+}
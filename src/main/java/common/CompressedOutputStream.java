@@ -0,0 +1,74 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects written bytes and sends them as one block on every flush. See
+ * {@link Compression}.
+ */
+public class CompressedOutputStream extends OutputStream {
+	private final OutputStream os;
+	private final Compression.Compressor compressor;
+
+	private byte[] buffer = new byte[512];
+	private int count = 0;
+
+	public CompressedOutputStream(OutputStream os, Compression.Compressor compressor) {
+		this.os = os;
+		this.compressor = compressor;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensure(1);
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		ensure(len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	private void ensure(int n) throws IOException {
+		if (count + n <= buffer.length) {
+			return;
+		}
+		if (count + n > Compression.MAX_BLOCK_LENGTH) {
+			// Better two blocks than a block the peer refuses.
+			writeBlock();
+			if (n > Compression.MAX_BLOCK_LENGTH) {
+				throw new IOException("Write too long.");
+			}
+		}
+		if (count + n > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, count + n));
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		compressor.compress(buffer, 0, count, os);
+		count = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			writeBlock();
+		}
+		os.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			compressor.close();
+			os.close();
+		}
+	}
+}
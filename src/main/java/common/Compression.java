@@ -0,0 +1,330 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the session channel, see {@link Features#DEFLATE}.
+ * <p/>
+ * Everything written between two flushes, usually one DTO, is sent as a
+ * block. A block starts with a varint holding its payload length shifted
+ * left by one, with the lowest bit set if the payload is compressed. A
+ * compressed payload is preceded by another varint holding its original
+ * length. Payloads shorter than the threshold are sent raw.
+ * <p/>
+ * Compressed payloads of one direction form a single deflate stream, each
+ * ending with a sync flush. Later messages can thus refer back to earlier
+ * ones, so the window acts as a dictionary shared by both ends of the
+ * connection, which pays off for repetitive chat traffic.
+ */
+public final class Compression {
+	/**
+	 * Payloads shorter than this are not worth compressing by default.
+	 */
+	public static final int DEFAULT_THRESHOLD = 64;
+
+	/**
+	 * Upper bound for the length of a block, see
+	 * {@link BinaryCodec#MAX_FRAME_LENGTH}.
+	 */
+	public static final int MAX_BLOCK_LENGTH = BinaryCodec.MAX_FRAME_LENGTH;
+
+	private static final int MAX_VARINT_LENGTH = 5;
+
+	private Compression() {
+	}
+
+	/**
+	 * Determines the length of the block starting at the given offset.
+	 *
+	 * @return the length of the whole block including its header, or
+	 *         {@code -1} if it is not complete yet
+	 * @throws StreamCorruptedException
+	 *             if the header is malformed
+	 */
+	public static int blockLength(byte[] b, int off, int len) throws StreamCorruptedException {
+		int header = headerLength(b, off, len);
+		if (header == -1) {
+			return -1;
+		}
+		int total = header + payloadLength(b, off, len);
+		return total <= len ? total : -1;
+	}
+
+	/**
+	 * @return the length of the header of the block starting at the given
+	 *         offset, or {@code -1} if it is not complete yet
+	 * @throws StreamCorruptedException
+	 *             if the header is malformed
+	 */
+	public static int headerLength(byte[] b, int off, int len) throws StreamCorruptedException {
+		long header = varint(b, off, len);
+		if (header == -1) {
+			return -1;
+		}
+		if (header >>> 1 > MAX_BLOCK_LENGTH) {
+			throw new StreamCorruptedException("Invalid block length " + (header >>> 1) + ".");
+		}
+		int pos = BinaryCodec.varintLength((int) header);
+		if ((header & 1) != 0) {
+			long original = varint(b, off + pos, len - pos);
+			if (original == -1) {
+				return -1;
+			}
+			if (original > MAX_BLOCK_LENGTH) {
+				throw new StreamCorruptedException("Invalid content length " + original + ".");
+			}
+			pos += BinaryCodec.varintLength((int) original);
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the length of the payload of a block, given its complete
+	 *         header
+	 */
+	public static int payloadLength(byte[] b, int off, int len) throws StreamCorruptedException {
+		return (int) varint(b, off, len) >>> 1;
+	}
+
+	/**
+	 * @return the length of the content of a block, once decompressed
+	 */
+	public static int contentLength(byte[] b, int off, int len) throws StreamCorruptedException {
+		int header = (int) varint(b, off, len);
+		if ((header & 1) == 0) {
+			return header >>> 1;
+		}
+		int pos = BinaryCodec.varintLength(header);
+		return (int) varint(b, off + pos, len - pos);
+	}
+
+	/**
+	 * @return the value of the varint, or {@code -1} if it is not complete
+	 */
+	private static long varint(byte[] b, int off, int len) throws StreamCorruptedException {
+		int value = 0;
+		for (int i = 0; i < Math.min(len, MAX_VARINT_LENGTH); i++) {
+			value |= (b[off + i] & 0x7f) << (7 * i);
+			if ((b[off + i] & 0x80) == 0) {
+				if (value < 0) {
+					throw new StreamCorruptedException("Invalid block length.");
+				}
+				return value;
+			}
+		}
+		if (len >= MAX_VARINT_LENGTH) {
+			throw new StreamCorruptedException("Block length too long.");
+		}
+		return -1;
+	}
+
+	/**
+	 * Turns payloads into blocks. There must be one per connection and
+	 * direction, though it may be closed from another thread, as a session
+	 * may be closed while its outbox is still writing.
+	 */
+	public static final class Compressor {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final int threshold;
+		private final Stats stats;
+
+		private final byte[] header = new byte[2 * MAX_VARINT_LENGTH];
+		private byte[] buffer = new byte[1024];
+		private final Lock lock = new ReentrantLock();
+		private boolean closed = false;
+
+		public Compressor(int threshold, Stats stats) {
+			this.threshold = threshold;
+			this.stats = stats;
+		}
+
+		/**
+		 * Writes the given payload to the given stream as one block.
+		 */
+		public void compress(byte[] b, int off, int len, OutputStream os) throws IOException {
+			lock.lock();
+			try {
+				if (closed) {
+					throw new IOException("Compressor closed.");
+				}
+				if (len < threshold) {
+					int pos = BinaryCodec.writeVarint(header, 0, len << 1);
+					os.write(header, 0, pos);
+					os.write(b, off, len);
+					stats.sent(len, pos + len, false, 0);
+					return;
+				}
+
+				long start = System.nanoTime();
+				deflater.setInput(b, off, len);
+				int n = 0;
+				while (true) {
+					n += deflater.deflate(buffer, n, buffer.length - n, Deflater.SYNC_FLUSH);
+					if (n < buffer.length) {
+						break;
+					}
+					buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				}
+				long elapsed = System.nanoTime() - start;
+
+				int pos = BinaryCodec.writeVarint(header, 0, n << 1 | 1);
+				pos = BinaryCodec.writeVarint(header, pos, len);
+				os.write(header, 0, pos);
+				os.write(buffer, 0, n);
+				stats.sent(len, pos + n, true, elapsed);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Releases the native memory of the deflater. Later blocks are
+		 * refused.
+		 */
+		public void close() {
+			lock.lock();
+			try {
+				closed = true;
+				deflater.end();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Turns blocks back into payloads. There must be one per connection and
+	 * direction, though it may be closed from another thread, as a session
+	 * may be closed while a block is being read.
+	 */
+	public static final class Decompressor {
+		private final Inflater inflater = new Inflater();
+		private final Stats stats;
+		private final Lock lock = new ReentrantLock();
+		private boolean closed = false;
+
+		public Decompressor(Stats stats) {
+			this.stats = stats;
+		}
+
+		/**
+		 * Decompresses a complete block, see {@link Compression#blockLength}.
+		 *
+		 * @param out
+		 *            has to have room for {@link Compression#contentLength}
+		 *            bytes
+		 * @return the length of the content
+		 */
+		public int decompress(byte[] b, int off, int len, byte[] out, int outOff) throws IOException {
+			lock.lock();
+			try {
+				if (closed) {
+					throw new IOException("Decompressor closed.");
+				}
+				int header = (int) varint(b, off, len);
+				int pos = BinaryCodec.varintLength(header);
+				int n = header >>> 1;
+
+				if ((header & 1) == 0) {
+					System.arraycopy(b, off + pos, out, outOff, n);
+					stats.received(false, 0);
+					return n;
+				}
+
+				int original = (int) varint(b, off + pos, len - pos);
+				pos += BinaryCodec.varintLength(original);
+
+				long start = System.nanoTime();
+				inflater.setInput(b, off + pos, n);
+				int total = 0;
+				try {
+					while (total < original) {
+						int inflated = inflater.inflate(out, outOff + total, original - total);
+						if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+							throw new StreamCorruptedException("Truncated block.");
+						}
+						total += inflated;
+					}
+				} catch (DataFormatException e) {
+					throw new StreamCorruptedException("Corrupt block: " + e.getMessage());
+				}
+				if (inflater.getRemaining() > 0) {
+					throw new StreamCorruptedException("Trailing bytes in block.");
+				}
+				stats.received(true, System.nanoTime() - start);
+				return original;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Releases the native memory of the inflater. Later blocks are
+		 * refused.
+		 */
+		public void close() {
+			lock.lock();
+			try {
+				closed = true;
+				inflater.end();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Counters to judge whether compression pays off, shared by all
+	 * connections of a component.
+	 */
+	public static final class Stats {
+		private final AtomicLong blocks = new AtomicLong();
+		private final AtomicLong compressed = new AtomicLong();
+		private final AtomicLong plain = new AtomicLong();
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong compressNanos = new AtomicLong();
+		private final AtomicLong inflated = new AtomicLong();
+		private final AtomicLong decompressNanos = new AtomicLong();
+
+		void sent(int plainLength, int blockLength, boolean deflated, long nanos) {
+			blocks.incrementAndGet();
+			plain.addAndGet(plainLength);
+			sent.addAndGet(blockLength);
+			if (deflated) {
+				compressed.incrementAndGet();
+				compressNanos.addAndGet(nanos);
+			}
+		}
+
+		void received(boolean deflated, long nanos) {
+			if (deflated) {
+				inflated.incrementAndGet();
+				decompressNanos.addAndGet(nanos);
+			}
+		}
+
+		@Override
+		public String toString() {
+			long plain = this.plain.get();
+			long sent = this.sent.get();
+			long compressed = this.compressed.get();
+			long inflated = this.inflated.get();
+			return String.format(Locale.ROOT,
+					"Compressed %d of %d messages sent, %d bytes to %d bytes (%.1f%%), %.1f us each%n"
+							+ "Decompressed %d messages received, %.1f us each",
+					compressed, blocks.get(), plain, sent, plain == 0 ? 100.0 : 100.0 * sent / plain,
+					compressed == 0 ? 0.0 : compressNanos.get() / 1e3 / compressed, inflated,
+					inflated == 0 ? 0.0 : decompressNanos.get() / 1e3 / inflated);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.StreamCorruptedException;
+
+/**
+ * Reads DTOs in the format of {@link BinaryCodec}, as a replacement for
+ * {@link java.io.ObjectInputStream}.
+ */
+public class DTOInputStream extends DataInputStream implements ObjectInput {
+	private byte[] body = new byte[256];
+
+	public DTOInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @throws EOFException
+	 *             if the stream ends before the next frame starts
+	 */
+	@Override
+	public Object readObject() throws IOException {
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (shift > 28) {
+				throw new StreamCorruptedException("Frame length too long.");
+			}
+			int b = read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+
+		if (length < 0 || length > BinaryCodec.MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length " + length + ".");
+		}
+
+		if (length > body.length) {
+			body = new byte[length];
+		}
+		readFully(body, 0, length);
+		return BinaryCodec.decode(body, 0, length);
+	}
+}
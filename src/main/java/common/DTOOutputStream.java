@@ -0,0 +1,21 @@
+package common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+
+/**
+ * Writes DTOs in the format of {@link BinaryCodec}, as a replacement for
+ * {@link java.io.ObjectOutputStream}.
+ */
+public class DTOOutputStream extends DataOutputStream implements ObjectOutput {
+	public DTOOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void writeObject(Object o) throws IOException {
+		write(BinaryCodec.encode(o));
+	}
+}
@@ -0,0 +1,136 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Like {@link CipherInputStream}, but decrypts into a buffer that is reused
+ * for every read from the underlying stream, instead of getting a fresh array
+ * from the cipher each time.
+ */
+public class DirectCipherInputStream extends InputStream {
+	private final Cipher c;
+	private final InputStream is;
+
+	private final byte[] readBuffer = new byte[512];
+	private byte[] buffer;
+
+	// Flag to indicate whether we are done reading (input returned -1).
+	private boolean done = false;
+
+	// Indices inside buffer that bound the range that's safe to return
+	// on read.
+	private int from, to = 0;
+
+	public DirectCipherInputStream(InputStream is, Cipher c) {
+		this.is = is;
+		this.c = c;
+		this.buffer = new byte[c.getOutputSize(readBuffer.length)];
+	}
+
+	/**
+	 * @return the number of bytes available in the buffer, or {@code -1} at
+	 *         the end of the stream
+	 */
+	private int buffer() throws IOException {
+		if (done) {
+			return -1;
+		}
+
+		from = to = 0;
+
+		int readin = is.read(readBuffer);
+		try {
+			if (readin == -1) {
+				done = true;
+				to = c.doFinal(ensure(c.getOutputSize(0)), 0);
+				return to == 0 ? -1 : to;
+			}
+			to = c.update(readBuffer, 0, readin, ensure(c.getOutputSize(readin)), 0);
+		} catch (GeneralSecurityException e) {
+			// We cannot recover from this, the stream is out of step.
+			throw new IOException("Decryption failed.", e);
+		}
+		return to;
+	}
+
+	private byte[] ensure(int n) {
+		if (buffer.length < n) {
+			buffer = new byte[Math.max(n, 2 * buffer.length)];
+		}
+		return buffer;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (from >= to) {
+			int i = 0;
+			while (i == 0) {
+				i = buffer();
+			}
+			if (i == -1) {
+				return -1;
+			}
+		}
+		return buffer[from++] & 0xff;
+	}
+
+	@Override
+	public int read(byte b[]) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len <= 0) {
+			return 0;
+		}
+
+		if (from >= to) {
+			int i = 0;
+			while (i == 0) {
+				i = buffer();
+			}
+			if (i == -1) {
+				return -1;
+			}
+		}
+
+		int available = Math.min(len, to - from);
+		System.arraycopy(buffer, from, b, off, available);
+		from += available;
+		return available;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		int available = to - from;
+		if (n > available) {
+			n = available;
+		}
+		if (n < 0) {
+			return 0;
+		}
+		from += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return to - from;
+	}
+
+	@Override
+	public void close() throws IOException {
+		is.close();
+		from = to = 0;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,88 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Like {@link CipherOutputStream}, but encrypts into a buffer that is reused
+ * for every write, so that once it has grown to fit the largest write nothing
+ * is allocated anymore.
+ * <p/>
+ * Writes larger than {@link #CHUNK} are encrypted in pieces, to keep the
+ * buffer small.
+ */
+public class DirectCipherOutputStream extends OutputStream {
+	static final int CHUNK = 8192;
+
+	private final Cipher c;
+	private final OutputStream os;
+
+	private final byte[] single = new byte[1];
+	private byte[] buf;
+
+	public DirectCipherOutputStream(OutputStream os, Cipher c) {
+		this.os = os;
+		this.c = c;
+		this.buf = new byte[c.getOutputSize(512)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte b[]) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, CHUNK);
+			int out;
+			try {
+				out = c.update(b, off, n, ensure(c.getOutputSize(n)), 0);
+			} catch (ShortBufferException e) {
+				throw new IOException(e);
+			}
+			if (out > 0) {
+				os.write(buf, 0, out);
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		os.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			int out = c.doFinal(ensure(c.getOutputSize(0)), 0);
+			if (out > 0) {
+				os.write(buf, 0, out);
+			}
+			os.flush();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Encryption failed.", e);
+		} finally {
+			os.close();
+		}
+	}
+
+	private byte[] ensure(int n) {
+		if (buf.length < n) {
+			buf = new byte[Math.max(n, 2 * buf.length)];
+		}
+		return buf;
+	}
+}
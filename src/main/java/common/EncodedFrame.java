@@ -0,0 +1,51 @@
+package common;
+
+import java.io.IOException;
+import java.io.ObjectOutput;
+
+/**
+ * A DTO together with its {@link BinaryCodec} frame, so that a DTO sent to
+ * many clients is only encoded once.
+ * <p/>
+ * Instances are immutable and may be shared between threads.
+ */
+public final class EncodedFrame {
+	private final Object dto;
+	private final byte[] frame;
+
+	private EncodedFrame(Object dto, byte[] frame) {
+		this.dto = dto;
+		this.frame = frame;
+	}
+
+	/**
+	 * @throws java.io.NotSerializableException
+	 *             if there is no encoding for the type of the given object
+	 */
+	public static EncodedFrame of(Object dto) throws IOException {
+		return new EncodedFrame(dto, BinaryCodec.encode(dto));
+	}
+
+	public Object getObject() {
+		return dto;
+	}
+
+	/**
+	 * @return the length of the frame in bytes
+	 */
+	public int length() {
+		return frame.length;
+	}
+
+	/**
+	 * Writes the frame as is to a {@link DTOOutputStream}. Other streams have
+	 * their own encoding, so the DTO itself is written to them instead.
+	 */
+	public void writeTo(ObjectOutput out) throws IOException {
+		if (out instanceof DTOOutputStream) {
+			out.write(frame);
+		} else {
+			out.writeObject(dto);
+		}
+	}
+}
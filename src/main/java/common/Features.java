@@ -0,0 +1,95 @@
+package common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Optional protocol features that client and chatserver agree on during the
+ * handshake.
+ * <p/>
+ * The client offers a list of features as an additional parameter of the
+ * first message, and the server answers with the subset it accepts as an
+ * additional parameter of the second message. Peers that do not know about
+ * features just leave the parameters out, so that nothing is enabled.
+ */
+public final class Features {
+	/**
+	 * Exchange DTOs using {@link BinaryCodec} instead of Java serialization.
+	 */
+	public static final String BINARY = "binary";
+
+	/**
+	 * Hand out tickets to resume sessions without RSA, see
+	 * {@link Resumption}.
+	 */
+	public static final String RESUME = "resume";
+
+	/**
+	 * Send the session as AES-GCM records instead of one AES/CTR stream per
+	 * direction, see {@link RecordCipher}.
+	 */
+	public static final String GCM = "gcm";
+
+	/**
+	 * Compress messages before encrypting them, see {@link Compression}.
+	 */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * All features this code base supports, in order of preference.
+	 */
+	public static final String SUPPORTED = BINARY + "," + RESUME + "," + GCM + "," + DEFLATE;
+
+	private static final String NONE = "-";
+
+	private Features() {
+	}
+
+	/**
+	 * @param list
+	 *            a comma separated list of features
+	 * @return the features in the given list
+	 */
+	public static Set<String> parse(String list) {
+		Set<String> features = new LinkedHashSet<>();
+		if (list == null || list.equals(NONE)) {
+			return features;
+		}
+		for (String feature : list.split(",")) {
+			if (!feature.trim().isEmpty()) {
+				features.add(feature.trim());
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * @return the given features as a parameter for the handshake, which
+	 *         never is empty and does not contain whitespace
+	 */
+	public static String format(Collection<String> features) {
+		if (features.isEmpty()) {
+			return NONE;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String feature : features) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(feature);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the offered features that are also accepted, in the order of
+	 *         the offer
+	 */
+	public static Set<String> negotiate(Set<String> offered, Set<String> accepted) {
+		Set<String> result = new LinkedHashSet<>(offered);
+		result.retainAll(accepted);
+		return Collections.unmodifiableSet(result);
+	}
+}
@@ -0,0 +1,71 @@
+package common;
+
+/**
+ * The ways client and chatserver can agree on a session key.
+ * <p/>
+ * In the original {@link #RSA} mode the first message is encrypted with the
+ * server's RSA key and Base64 encoded. Other modes open with a line of plain
+ * text instead, starting with {@code !} and ending with a newline, which can
+ * never be mistaken for Base64. The server answers {@link #RETRY} if it does
+ * not accept the mode, and the client goes on with its next mode on the same
+ * connection.
+ * <p/>
+ * To spare that round trip, a client opens with {@link #HELLO} instead,
+ * offering all of its modes at once:
+ * <pre>
+ * !hello modes username x25519-key x25519-nonce features rsa-first-message
+ * </pre>
+ * Parameters for modes not offered are {@link #ABSENT}. The server picks a
+ * mode and replies as in that mode, with the second message of {@link #RSA}
+ * ending in a newline as well, or with {@link #RETRY} if there is no common
+ * mode.
+ */
+public final class HandshakeModes {
+	/**
+	 * Session key chosen by the server and RSA encrypted for the client.
+	 */
+	public static final String RSA = "rsa";
+
+	/**
+	 * Session key agreed on with X25519, see {@link X25519}.
+	 */
+	public static final String X25519 = "x25519";
+
+	/**
+	 * Session key derived from an earlier session, see {@link Resumption}.
+	 * Enabled as a feature rather than as a mode, as it depends on a ticket
+	 * from an earlier handshake in some other mode.
+	 */
+	public static final String RESUME = "resume";
+
+	/**
+	 * All modes this code base supports, in order of preference.
+	 */
+	public static final String SUPPORTED = X25519 + "," + RSA;
+
+	public static final String RETRY = "!retry";
+
+	public static final String HELLO = "!hello";
+
+	/**
+	 * Placeholder for the parameters of {@link #HELLO} that belong to modes
+	 * not offered.
+	 */
+	public static final String ABSENT = "-";
+
+	/**
+	 * Upper bound for the length of the lines exchanged during a handshake.
+	 */
+	public static final int MAX_LINE_LENGTH = 4096;
+
+	private HandshakeModes() {
+	}
+
+	/**
+	 * @return {@code true} if a first message starting with the given byte is
+	 *         a line, rather than Base64
+	 */
+	public static boolean isLine(int first) {
+		return first == '!';
+	}
+}
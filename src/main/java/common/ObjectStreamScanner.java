@@ -0,0 +1,348 @@
+package common;
+
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the boundaries of top level elements in a Java serialization stream
+ * without deserializing them.
+ * <p/>
+ * An {@link java.io.ObjectInputStream} cannot be resumed once it ran out of
+ * input in the middle of an object, so a non-blocking reader has to make sure
+ * that a whole object is available before handing it over. To do so, this
+ * scanner walks the grammar of the serialization protocol and keeps track of
+ * the handles assigned to class descriptors, because later objects refer to
+ * them to describe their fields.
+ * <p/>
+ * The stream header is reported as the first element. Externalizable classes
+ * written in the old protocol version and serialized exceptions are not
+ * supported.
+ */
+public class ObjectStreamScanner implements ObjectStreamConstants {
+	private static final int HEADER_LENGTH = 4;
+
+	/**
+	 * Thrown internally when the input ends in the middle of an element.
+	 */
+	private static final class Incomplete extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Incomplete() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Incomplete INCOMPLETE = new Incomplete();
+
+	/**
+	 * What we need to remember about a class descriptor in order to skip over
+	 * instances of it.
+	 */
+	private static final class ClassInfo {
+		private final String name;
+		private final byte flags;
+		private final char[] types;
+		private ClassInfo superclass;
+
+		ClassInfo(String name, byte flags, char[] types) {
+			this.name = name;
+			this.flags = flags;
+			this.types = types;
+		}
+	}
+
+	private final List<Object> handles = new ArrayList<>();
+
+	private boolean header = false;
+
+	private byte[] b;
+	private int pos;
+	private int limit;
+
+	/**
+	 * Determines the length of the next complete element.
+	 *
+	 * @param b
+	 *            the buffer holding the stream
+	 * @param off
+	 *            the offset at which the next element starts
+	 * @param len
+	 *            the number of bytes available
+	 * @return the length of the next element, or {@code -1} if more input is
+	 *         needed
+	 * @throws StreamCorruptedException
+	 *             if the input does not follow the serialization protocol
+	 */
+	public int scan(byte[] b, int off, int len) throws StreamCorruptedException {
+		this.b = b;
+		this.pos = off;
+		this.limit = off + len;
+
+		int mark = handles.size();
+
+		try {
+			if (!header) {
+				if (u2() != (STREAM_MAGIC & 0xffff) || u2() != STREAM_VERSION) {
+					throw new StreamCorruptedException("Invalid stream header.");
+				}
+				header = true;
+				return HEADER_LENGTH;
+			}
+
+			byte tc = peek();
+			if (tc == TC_RESET) {
+				pos++;
+				handles.clear();
+			} else if (tc == TC_BLOCKDATA) {
+				pos++;
+				skip(u1());
+			} else if (tc == TC_BLOCKDATALONG) {
+				pos++;
+				skip(s4());
+			} else {
+				content();
+			}
+
+			return pos - off;
+		} catch (Incomplete e) {
+			// Forget the handles of the partial element, they will be
+			// assigned again once the rest of it has arrived.
+			handles.subList(mark, handles.size()).clear();
+			return -1;
+		} finally {
+			this.b = null;
+		}
+	}
+
+	private Object content() throws StreamCorruptedException {
+		byte tc = u1b();
+		switch (tc) {
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE:
+			return reference();
+		case TC_CLASSDESC:
+		case TC_PROXYCLASSDESC:
+			pos--;
+			return classDesc();
+		case TC_STRING:
+			return string(u2());
+		case TC_LONGSTRING:
+			return string(s8());
+		case TC_CLASS:
+			classDesc();
+			handles.add(null);
+			return null;
+		case TC_ENUM:
+			classDesc();
+			handles.add(null);
+			content();
+			return null;
+		case TC_ARRAY: {
+			ClassInfo info = classDesc();
+			handles.add(null);
+			array(info);
+			return null;
+		}
+		case TC_OBJECT: {
+			ClassInfo info = classDesc();
+			handles.add(null);
+			object(info);
+			return null;
+		}
+		default:
+			throw new StreamCorruptedException(String.format("Unsupported type code %02X.", tc));
+		}
+	}
+
+	private Object reference() throws StreamCorruptedException {
+		int handle = s4() - baseWireHandle;
+		if (handle < 0 || handle >= handles.size()) {
+			throw new StreamCorruptedException("Invalid handle " + handle + ".");
+		}
+		return handles.get(handle);
+	}
+
+	private ClassInfo classDesc() throws StreamCorruptedException {
+		byte tc = u1b();
+		switch (tc) {
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE: {
+			Object o = reference();
+			if (!(o instanceof ClassInfo)) {
+				throw new StreamCorruptedException("Reference does not point to a class descriptor.");
+			}
+			return (ClassInfo) o;
+		}
+		case TC_PROXYCLASSDESC: {
+			ClassInfo info = new ClassInfo(null, SC_SERIALIZABLE, new char[0]);
+			handles.add(info);
+			for (int i = s4(); i > 0; i--) {
+				skip(u2());
+			}
+			annotation();
+			info.superclass = classDesc();
+			return info;
+		}
+		case TC_CLASSDESC: {
+			int nameLength = u2();
+			String name = new String(b, pos, require(nameLength), StandardCharsets.UTF_8);
+			pos += nameLength;
+			skip(8);
+			int handle = handles.size();
+			handles.add(null);
+			byte flags = u1b();
+			char[] types = new char[u2()];
+			for (int i = 0; i < types.length; i++) {
+				types[i] = (char) u1();
+				skip(u2());
+				if (types[i] == 'L' || types[i] == '[') {
+					content();
+				}
+			}
+			ClassInfo info = new ClassInfo(name, flags, types);
+			handles.set(handle, info);
+			annotation();
+			info.superclass = classDesc();
+			return info;
+		}
+		default:
+			throw new StreamCorruptedException(String.format("Unexpected type code %02X for class descriptor.", tc));
+		}
+	}
+
+	private void object(ClassInfo info) throws StreamCorruptedException {
+		if (info == null) {
+			throw new StreamCorruptedException("Object without class descriptor.");
+		}
+		if (info.superclass != null) {
+			object(info.superclass);
+		}
+		if ((info.flags & SC_EXTERNALIZABLE) != 0) {
+			if ((info.flags & SC_BLOCK_DATA) == 0) {
+				throw new StreamCorruptedException("Externalizable data without block data is not supported.");
+			}
+			annotation();
+			return;
+		}
+		for (char type : info.types) {
+			value(type);
+		}
+		if ((info.flags & SC_WRITE_METHOD) != 0) {
+			annotation();
+		}
+	}
+
+	private void array(ClassInfo info) throws StreamCorruptedException {
+		if (info == null || info.name == null || info.name.length() < 2) {
+			throw new StreamCorruptedException("Array without class descriptor.");
+		}
+		char type = info.name.charAt(1);
+		for (int i = s4(); i > 0; i--) {
+			value(type);
+		}
+	}
+
+	private void value(char type) throws StreamCorruptedException {
+		switch (type) {
+		case 'B':
+		case 'Z':
+			skip(1);
+			break;
+		case 'C':
+		case 'S':
+			skip(2);
+			break;
+		case 'I':
+		case 'F':
+			skip(4);
+			break;
+		case 'J':
+		case 'D':
+			skip(8);
+			break;
+		case 'L':
+		case '[':
+			content();
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown field type " + type + ".");
+		}
+	}
+
+	/**
+	 * Skips class and object annotations up to and including the end marker.
+	 */
+	private void annotation() throws StreamCorruptedException {
+		while (true) {
+			byte tc = peek();
+			if (tc == TC_ENDBLOCKDATA) {
+				pos++;
+				return;
+			} else if (tc == TC_BLOCKDATA) {
+				pos++;
+				skip(u1());
+			} else if (tc == TC_BLOCKDATALONG) {
+				pos++;
+				skip(s4());
+			} else {
+				content();
+			}
+		}
+	}
+
+	private Object string(long length) throws StreamCorruptedException {
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new StreamCorruptedException("Invalid string length " + length + ".");
+		}
+		skip((int) length);
+		handles.add(null);
+		return null;
+	}
+
+	private int require(int n) {
+		if (n > limit - pos) {
+			throw INCOMPLETE;
+		}
+		return n;
+	}
+
+	private void skip(int n) throws StreamCorruptedException {
+		if (n < 0) {
+			throw new StreamCorruptedException("Invalid length " + n + ".");
+		}
+		pos += require(n);
+	}
+
+	private byte peek() {
+		require(1);
+		return b[pos];
+	}
+
+	private byte u1b() {
+		require(1);
+		return b[pos++];
+	}
+
+	private int u1() {
+		return u1b() & 0xff;
+	}
+
+	private int u2() {
+		require(2);
+		return ((b[pos++] & 0xff) << 8) | (b[pos++] & 0xff);
+	}
+
+	private int s4() {
+		require(4);
+		return ((b[pos++] & 0xff) << 24) | ((b[pos++] & 0xff) << 16) | ((b[pos++] & 0xff) << 8) | (b[pos++] & 0xff);
+	}
+
+	private long s8() {
+		return ((long) s4() << 32) | (s4() & 0xffffffffL);
+	}
+}
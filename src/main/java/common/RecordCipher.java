@@ -0,0 +1,146 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import util.SecurityUtils;
+
+/**
+ * Seals or opens the records of one direction of a session in
+ * {@link Features#GCM} mode.
+ * <p/>
+ * Instead of one AES/CTR stream per direction, the plaintext is cut into
+ * records of at most {@link #MAX_PLAINTEXT_LENGTH} bytes, and each record is
+ * sent as
+ *
+ * <pre>
+ * length (2 bytes, big endian) | AES-GCM(plaintext) | tag (16 bytes)
+ * </pre>
+ *
+ * where the length covers ciphertext and tag and is authenticated as
+ * additional data. Every direction has a key and IV of its own, derived from
+ * the session key, and the nonce of a record is that IV XORed with the
+ * number of records sent before it. A record can thus be checked and
+ * decrypted on its own, and a tampered, dropped or replayed record makes
+ * {@link #open} fail.
+ * <p/>
+ * Instances are not thread-safe and count records, so there must be exactly
+ * one per direction and side.
+ */
+public final class RecordCipher {
+	public static final String SPEC = "AES/GCM/NoPadding";
+
+	public static final int HEADER_LENGTH = 2;
+	public static final int TAG_LENGTH = 16;
+	public static final int MAX_PLAINTEXT_LENGTH = 16384;
+	public static final int MAX_RECORD_LENGTH = HEADER_LENGTH + MAX_PLAINTEXT_LENGTH + TAG_LENGTH;
+
+	private static final String MAC = "HmacSHA256";
+	private static final int NONCE_LENGTH = 12;
+
+	private final int mode;
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] iv;
+	private final byte[] nonce = new byte[NONCE_LENGTH];
+	private long sequence = 0;
+
+	/**
+	 * @param mode
+	 *            {@link Cipher#ENCRYPT_MODE} to seal or
+	 *            {@link Cipher#DECRYPT_MODE} to open records
+	 * @param sessionKey
+	 *            the key agreed on in the handshake
+	 * @param client
+	 *            whether the records are sent by the client
+	 */
+	public RecordCipher(int mode, byte[] sessionKey, boolean client) throws GeneralSecurityException {
+		String direction = client ? "client" : "server";
+		this.mode = mode;
+		this.cipher = SecurityUtils.newCipher(SPEC);
+		this.key = new SecretKeySpec(hmac(sessionKey, "gcm key " + direction), "AES");
+		this.iv = Arrays.copyOf(hmac(sessionKey, "gcm iv " + direction), NONCE_LENGTH);
+	}
+
+	/**
+	 * Encrypts the given plaintext into a record.
+	 *
+	 * @param out
+	 *            has to have room for {@code len + }{@link #HEADER_LENGTH}
+	 *            {@code + }{@link #TAG_LENGTH} bytes
+	 * @return the length of the record
+	 */
+	public int seal(byte[] b, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+		if (len > MAX_PLAINTEXT_LENGTH) {
+			throw new IllegalArgumentException("Record too long.");
+		}
+		int n = len + TAG_LENGTH;
+		out[outOff] = (byte) (n >>> 8);
+		out[outOff + 1] = (byte) n;
+
+		init(Cipher.ENCRYPT_MODE);
+		cipher.updateAAD(out, outOff, HEADER_LENGTH);
+		return HEADER_LENGTH + cipher.doFinal(b, off, len, out, outOff + HEADER_LENGTH);
+	}
+
+	/**
+	 * Checks and decrypts a complete record, see {@link #recordLength}.
+	 *
+	 * @param out
+	 *            has to have room for {@link #MAX_PLAINTEXT_LENGTH} bytes
+	 * @return the length of the plaintext
+	 * @throws javax.crypto.AEADBadTagException
+	 *             if the record was tampered with or is out of order
+	 */
+	public int open(byte[] b, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+		init(Cipher.DECRYPT_MODE);
+		cipher.updateAAD(b, off, HEADER_LENGTH);
+		return cipher.doFinal(b, off + HEADER_LENGTH, len - HEADER_LENGTH, out, outOff);
+	}
+
+	/**
+	 * Determines the length of the record starting at the given offset.
+	 *
+	 * @return the length of the whole record including its header, or
+	 *         {@code -1} if it is not complete yet
+	 */
+	public static int recordLength(byte[] b, int off, int len) {
+		if (len < HEADER_LENGTH) {
+			return -1;
+		}
+		int total = HEADER_LENGTH + ((b[off] & 0xff) << 8 | b[off + 1] & 0xff);
+		return total <= len ? total : -1;
+	}
+
+	/**
+	 * @return whether the length in the given header is plausible
+	 */
+	public static boolean isValidHeader(byte[] b, int off) {
+		int n = (b[off] & 0xff) << 8 | b[off + 1] & 0xff;
+		return n >= TAG_LENGTH && n <= MAX_PLAINTEXT_LENGTH + TAG_LENGTH;
+	}
+
+	private void init(int expected) throws GeneralSecurityException {
+		if (mode != expected) {
+			throw new IllegalStateException();
+		}
+		long s = sequence++;
+		System.arraycopy(iv, 0, nonce, 0, NONCE_LENGTH);
+		for (int i = 0; i < 8; i++) {
+			nonce[NONCE_LENGTH - 1 - i] ^= (byte) (s >>> (8 * i));
+		}
+		cipher.init(mode, key, new GCMParameterSpec(8 * TAG_LENGTH, nonce));
+	}
+
+	private static byte[] hmac(byte[] key, String label) throws GeneralSecurityException {
+		Mac mac = SecurityUtils.newMac(MAC);
+		mac.init(new SecretKeySpec(key, MAC));
+		return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,101 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Reads sealed records and returns their plaintext. See
+ * {@link RecordCipher}.
+ */
+public class RecordInputStream extends InputStream {
+	private final InputStream is;
+	private final RecordCipher c;
+
+	private final byte[] record = new byte[RecordCipher.MAX_RECORD_LENGTH];
+	private final byte[] buffer = new byte[RecordCipher.MAX_PLAINTEXT_LENGTH];
+	private int from = 0;
+	private int to = 0;
+
+	public RecordInputStream(InputStream is, RecordCipher c) {
+		this.is = is;
+		this.c = c;
+	}
+
+	/**
+	 * Reads and opens the next record.
+	 *
+	 * @return {@code false} at the end of the stream
+	 */
+	private boolean next() throws IOException {
+		if (!readFully(0, RecordCipher.HEADER_LENGTH, true)) {
+			return false;
+		}
+		if (!RecordCipher.isValidHeader(record, 0)) {
+			throw new StreamCorruptedException("Invalid record length.");
+		}
+		int n = RecordCipher.HEADER_LENGTH + ((record[0] & 0xff) << 8 | record[1] & 0xff);
+		readFully(RecordCipher.HEADER_LENGTH, n - RecordCipher.HEADER_LENGTH, false);
+
+		try {
+			to = c.open(record, 0, n, buffer, 0);
+		} catch (GeneralSecurityException e) {
+			throw new StreamCorruptedException("Record failed authentication.");
+		}
+		from = 0;
+		return true;
+	}
+
+	private boolean readFully(int off, int len, boolean eofAllowed) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			int n = is.read(record, off, end - off);
+			if (n == -1) {
+				if (eofAllowed && off == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated record.");
+			}
+			off += n;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (from == to) {
+			if (!next()) {
+				return -1;
+			}
+		}
+		return buffer[from++] & 0xff;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len <= 0) {
+			return 0;
+		}
+		while (from == to) {
+			if (!next()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, to - from);
+		System.arraycopy(buffer, from, b, off, n);
+		from += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return to - from;
+	}
+
+	@Override
+	public void close() throws IOException {
+		is.close();
+	}
+}
@@ -0,0 +1,73 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Collects written bytes and sends them as a sealed record on every flush,
+ * or whenever a record is full. See {@link RecordCipher}.
+ */
+public class RecordOutputStream extends OutputStream {
+	private final OutputStream os;
+	private final RecordCipher c;
+
+	private final byte[] buffer = new byte[RecordCipher.MAX_PLAINTEXT_LENGTH];
+	private final byte[] record = new byte[RecordCipher.MAX_RECORD_LENGTH];
+	private int count = 0;
+
+	public RecordOutputStream(OutputStream os, RecordCipher c) {
+		this.os = os;
+		this.c = c;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			seal();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length) {
+				seal();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void seal() throws IOException {
+		int n;
+		try {
+			n = c.seal(buffer, 0, count, record, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not seal record.", e);
+		}
+		count = 0;
+		os.write(record, 0, n);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			seal();
+		}
+		os.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import util.SecurityUtils;
+
+/**
+ * Key derivation for resuming a session without RSA.
+ * <p/>
+ * After a full handshake, both sides derive a resumption secret from the
+ * session key, and the server hands the client a ticket that carries this
+ * secret encrypted under a key only the server knows. To resume, the client
+ * sends
+ *
+ * <pre>
+ * !resume &lt;ticket&gt; &lt;client-nonce&gt; &lt;features&gt;
+ * </pre>
+ *
+ * in plain text, terminated by a newline. If the server accepts the ticket,
+ * it answers with
+ *
+ * <pre>
+ * !ok &lt;server-nonce&gt; &lt;features&gt; &lt;ticket&gt; &lt;proof&gt;
+ * </pre>
+ *
+ * where the proof shows that the server could open the ticket. Both sides
+ * then derive a fresh session key and IV from the resumption secret and both
+ * nonces, and the client completes the handshake with the usual third
+ * message, i.e. the server nonce encrypted with the new key. Otherwise the
+ * server answers {@link HandshakeModes#RETRY} and waits for a full handshake
+ * on the same connection.
+ */
+public final class Resumption {
+	public static final String RESUME = "!resume";
+
+	private static final String MAC = "HmacSHA256";
+
+	private Resumption() {
+	}
+
+	/**
+	 * @return the resumption secret for a session with the given key
+	 */
+	public static byte[] resumptionSecret(byte[] sessionKey) throws GeneralSecurityException {
+		return hmac(sessionKey, "resumption");
+	}
+
+	/**
+	 * @return the key for the resumed session
+	 */
+	public static byte[] sessionKey(byte[] resumptionSecret, String clientNonce, String serverNonce)
+			throws GeneralSecurityException {
+		return hmac(resumptionSecret, "key " + clientNonce + " " + serverNonce);
+	}
+
+	/**
+	 * @return the IV for the resumed session
+	 */
+	public static byte[] sessionIv(byte[] resumptionSecret, String clientNonce, String serverNonce)
+			throws GeneralSecurityException {
+		return Arrays.copyOf(hmac(resumptionSecret, "iv " + clientNonce + " " + serverNonce), 16);
+	}
+
+	/**
+	 * @return the proof that the server knows the resumption secret, covering
+	 *         everything in its answer
+	 */
+	public static byte[] proof(byte[] resumptionSecret, String clientNonce, String serverNonce, String features,
+			String ticket) throws GeneralSecurityException {
+		return hmac(resumptionSecret, "server " + clientNonce + " " + serverNonce + " " + features + " " + ticket);
+	}
+
+	private static byte[] hmac(byte[] key, String label) throws GeneralSecurityException {
+		Mac mac = SecurityUtils.newMac(MAC);
+		mac.init(new SecretKeySpec(key, MAC));
+		return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+	}
+}
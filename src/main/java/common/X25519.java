@@ -0,0 +1,117 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import util.SecurityUtils;
+
+/**
+ * Handshake agreeing on the session key with X25519 instead of encrypting it
+ * with RSA.
+ * <p/>
+ * The client opens with
+ *
+ * <pre>
+ * !x25519 &lt;username&gt; &lt;client-key&gt; &lt;client-nonce&gt; &lt;features&gt;
+ * </pre>
+ *
+ * where the client key is an ephemeral X25519 public key. The server answers
+ *
+ * <pre>
+ * !ok &lt;server-key&gt; &lt;server-signature&gt; &lt;server-nonce&gt; &lt;features&gt; [&lt;ticket&gt;]
+ * </pre>
+ *
+ * Its X25519 key is generated at startup and signed with the server's RSA
+ * key once, so that the server does no private RSA operation per handshake.
+ * Both sides derive the session key and IV from the shared secret and both
+ * nonces. The client finishes with the line
+ *
+ * <pre>
+ * &lt;signature&gt; &lt;third-message&gt;
+ * </pre>
+ *
+ * signing the {@link #transcript transcript} with its RSA key, followed by
+ * the server nonce encrypted with the session key as in the RSA handshake.
+ */
+public final class X25519 {
+	public static final String HELLO = "!x25519";
+
+	private static final String ALGORITHM = "X25519";
+	private static final String MAC = "HmacSHA256";
+
+	private X25519() {
+	}
+
+	public static KeyPair generateKeyPair() throws GeneralSecurityException {
+		return KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+	}
+
+	public static String encode(PublicKey key) {
+		return new String(Base64.encode(key.getEncoded()));
+	}
+
+	public static PublicKey decode(String key) throws GeneralSecurityException {
+		try {
+			return KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(Base64.decode(key)));
+		} catch (RuntimeException e) {
+			throw new GeneralSecurityException("Malformed key.", e);
+		}
+	}
+
+	/**
+	 * @return the shared secret of the given keys
+	 */
+	public static byte[] agree(PrivateKey own, PublicKey other) throws GeneralSecurityException {
+		KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM);
+		agreement.init(own);
+		agreement.doPhase(other, true);
+		return agreement.generateSecret();
+	}
+
+	public static byte[] sessionKey(byte[] shared, String clientNonce, String serverNonce)
+			throws GeneralSecurityException {
+		return hmac(shared, "key " + clientNonce + " " + serverNonce);
+	}
+
+	public static byte[] sessionIv(byte[] shared, String clientNonce, String serverNonce)
+			throws GeneralSecurityException {
+		return Arrays.copyOf(hmac(shared, "iv " + clientNonce + " " + serverNonce), 16);
+	}
+
+	/**
+	 * @return what the server signs with its RSA key to vouch for its X25519
+	 *         key
+	 */
+	public static byte[] serverKeyStatement(String serverKey) {
+		return ("x25519-server " + serverKey).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return what the client signs with its RSA key, covering everything
+	 *         both sides sent in plain text
+	 */
+	public static byte[] transcript(String username, String clientKey, String clientNonce, String offered,
+			String serverKey, String serverNonce, String accepted) {
+		return ("x25519-client " + username + " " + clientKey + " " + clientNonce + " " + offered + " " + serverKey
+				+ " " + serverNonce + " " + accepted).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] hmac(byte[] key, String label) throws GeneralSecurityException {
+		Mac mac = SecurityUtils.newMac(MAC);
+		mac.init(new SecretKeySpec(key, MAC));
+		return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,17 @@
+package dto;
+
+import java.io.Serializable;
+
+public class JoinDTO implements Serializable {
+	private static final long serialVersionUID = 4129547915311867520L;
+
+	private final String room;
+
+	public JoinDTO(final String room) {
+		this.room = room;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+}
@@ -0,0 +1,17 @@
+package dto;
+
+import java.io.Serializable;
+
+public class LeaveDTO implements Serializable {
+	private static final long serialVersionUID = -3257210785049151862L;
+
+	private final String room;
+
+	public LeaveDTO(final String room) {
+		this.room = room;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+}
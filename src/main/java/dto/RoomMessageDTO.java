@@ -0,0 +1,23 @@
+package dto;
+
+import java.io.Serializable;
+
+public class RoomMessageDTO implements Serializable {
+	private static final long serialVersionUID = 6884270362150912017L;
+
+	private final String room;
+	private final String message;
+
+	public RoomMessageDTO(final String room, final String message) {
+		this.room = room;
+		this.message = message;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
@@ -11,4 +11,10 @@ public interface INameserver extends INameserverForChatserver, Remote {
 			INameserverForChatserver nameserverForChatserver)
 			throws RemoteException, AlreadyRegisteredException,
 			InvalidDomainException;
+
+	/**
+	 * Does nothing, so that a nameserver can check whether another one is
+	 * still reachable.
+	 */
+	public void ping() throws RemoteException;
 }
@@ -2,6 +2,8 @@ package nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Map;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
@@ -15,4 +17,34 @@ public interface INameserverForChatserver extends Remote {
 			throws RemoteException;
 
 	public String lookup(String username) throws RemoteException;
+
+	/**
+	 * Resolves a fully qualified user name, e.g. "alice.vienna.at", by
+	 * walking down the zones on the nameservers' side, so that the caller
+	 * needs a single round trip regardless of the depth of the name.
+	 *
+	 * @return the resolution, which is unresolved if a zone or the user is
+	 *         unknown
+	 */
+	public Resolution resolve(String name) throws RemoteException;
+
+	/**
+	 * Registers many users at once, given by their fully qualified names.
+	 * Each nameserver splits the batch by zone and forwards one batch to the
+	 * nameserver of every zone in parallel, so that this takes as many round
+	 * trips as the names are deep rather than one per user.
+	 *
+	 * @return why registering failed by name, which is empty if all
+	 *         registrations succeeded
+	 */
+	public Map<String, Exception> registerUsers(Map<String, String> addresses) throws RemoteException;
+
+	/**
+	 * Resolves many fully qualified user names at once, in the same way as
+	 * {@link #registerUsers(Map)}.
+	 *
+	 * @return the resolution of every given name, which carries an error if
+	 *         it could not be resolved because a zone was unreachable
+	 */
+	public Map<String, Resolution> lookupAll(Collection<String> names) throws RemoteException;
 }
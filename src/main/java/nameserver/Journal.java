@@ -0,0 +1,468 @@
+package nameserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the users and zones of a {@link Nameserver} across restarts.
+ * <p/>
+ * Every registration is appended to a write-ahead log and forced to disk
+ * before it is acknowledged. Registrations that arrive while the log is
+ * being forced wait for the next force together, so that concurrent
+ * registrations share an fsync instead of each paying for their own.
+ * <p/>
+ * Once enough records were appended, a snapshot of all users and zones is
+ * written in the background, after which older logs are deleted. This keeps
+ * the log tail that has to be replayed on startup short. Snapshots and logs
+ * carry a generation: the snapshot of generation {@code g} covers everything
+ * before {@code log.g}, and logs of later generations are replayed on top of
+ * it. Records are applied as puts, so replaying a record the snapshot
+ * already has does no harm.
+ * <p/>
+ * Every record is framed by its length and a CRC32, so that a record torn by
+ * a crash is detected and cut off when the log is replayed.
+ * <p/>
+ * Once writing or forcing the log failed, we cannot tell which records made
+ * it to disk, so the journal refuses all further appends.
+ */
+class Journal {
+	private static final int MAGIC = 0x4e534a31;
+
+	private static final byte USER = 1;
+	private static final byte ZONE = 2;
+
+	private static final String SNAPSHOT = "snapshot";
+	private static final String LOG = "log.";
+
+	private final File dir;
+	private final int interval;
+	private final ConcurrentMap<String, String> users;
+	private final ConcurrentMap<String, INameserver> zones;
+
+	private final Object syncLock = new Object();
+	private DataOutputStream out;
+	private FileChannel channel;
+	private long generation;
+	private long appended = 0;
+	private long synced = 0;
+	private long sinceSnapshot = 0;
+	private boolean closed = false;
+	private IOException failure = null;
+	private final AtomicBoolean snapshotting = new AtomicBoolean();
+
+	private long syncs = 0;
+	private long replayed = 0;
+	private long replayMillis = 0;
+	private long snapshots = 0;
+	private long snapshotEntries = 0;
+
+	/**
+	 * @param interval
+	 *            how many records to append to the log before taking a
+	 *            snapshot
+	 */
+	Journal(File dir, int interval, ConcurrentMap<String, String> users, ConcurrentMap<String, INameserver> zones) {
+		this.dir = dir;
+		this.interval = Math.max(1, interval);
+		this.users = users;
+		this.zones = zones;
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the logs written after it into
+	 * our maps, then opens a log for appending.
+	 */
+	synchronized void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir + ".");
+		}
+
+		File snapshot = new File(dir, SNAPSHOT);
+		generation = snapshot.exists() ? loadSnapshot(snapshot) : 0;
+
+		TreeMap<Long, File> logs = logs();
+		for (Map.Entry<Long, File> log : logs.entrySet()) {
+			if (log.getKey() < generation) {
+				Files.delete(log.getValue().toPath());
+			} else {
+				replay(log.getValue());
+				generation = log.getKey();
+			}
+		}
+
+		open(generation);
+		replayMillis = System.currentTimeMillis() - start;
+	}
+
+	private long loadSnapshot(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new StreamCorruptedException("Not a snapshot: " + file + ".");
+			}
+			long generation = in.readLong();
+			long count = in.readLong();
+			for (long i = 0; i < count; i++) {
+				byte[] record = readRecord(in);
+				if (record == null) {
+					throw new StreamCorruptedException("Snapshot " + file + " is truncated.");
+				}
+				apply(record);
+			}
+			snapshotEntries = count;
+			return generation;
+		}
+	}
+
+	private void replay(File file) throws IOException {
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			byte[] record;
+			while ((record = readRecord(in)) != null) {
+				apply(record);
+				valid += 8 + record.length;
+				replayed++;
+				sinceSnapshot++;
+			}
+		}
+
+		// Cut off a record torn by a crash, so that we append after the last
+		// valid one.
+		if (valid < file.length()) {
+			System.err.println("Truncating " + file + " after " + valid + " of " + file.length() + " bytes.");
+			try (FileChannel channel = new FileOutputStream(file, true).getChannel()) {
+				channel.truncate(valid);
+			}
+		}
+	}
+
+	/**
+	 * @return the payload of the next record, or {@code null} if there is no
+	 *         complete and intact one
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int crc = in.readInt();
+			if (length < 0 || length > 1 << 20) {
+				return null;
+			}
+			byte[] record = new byte[length];
+			in.readFully(record);
+			return crc(record) == crc ? record : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		String name = in.readUTF();
+		if (type == USER) {
+			users.put(name, in.readUTF());
+		} else if (type == ZONE) {
+			try (ObjectInputStream stub = new ObjectInputStream(in)) {
+				zones.put(name, (INameserver) stub.readObject());
+			} catch (ClassNotFoundException | ClassCastException e) {
+				throw new StreamCorruptedException("Could not restore zone " + name + ": " + e);
+			}
+		} else {
+			throw new StreamCorruptedException("Unknown record type " + type + ".");
+		}
+	}
+
+	/**
+	 * Appends the registration of a user and waits until it is on disk.
+	 */
+	void user(String name, String address) throws IOException {
+		sync(append(userRecord(name, address)));
+	}
+
+	/**
+	 * Appends the registrations of many users and waits until all of them
+	 * are on disk, which takes a single force.
+	 */
+	void users(Map<String, String> addresses) throws IOException {
+		long last = 0;
+		for (Map.Entry<String, String> address : addresses.entrySet()) {
+			last = append(userRecord(address.getKey(), address.getValue()));
+		}
+		sync(last);
+	}
+
+	/**
+	 * Appends the registration of a zone and waits until it is on disk. The
+	 * stub of its nameserver is stored, so that we can reach it after a
+	 * restart as long as the nameserver itself keeps running.
+	 */
+	void zone(String name, INameserver nameserver) throws IOException {
+		sync(append(zoneRecord(name, nameserver)));
+	}
+
+	private static byte[] userRecord(String name, String address) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(USER);
+		record.writeUTF(name);
+		record.writeUTF(address);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] zoneRecord(String name, INameserver nameserver) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(ZONE);
+		record.writeUTF(name);
+		try (ObjectOutputStream stub = new ObjectOutputStream(record)) {
+			stub.writeObject(nameserver);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the sequence number of the appended record
+	 */
+	private synchronized long append(byte[] record) throws IOException {
+		if (closed) {
+			throw new IOException("Journal is closed.");
+		}
+		checkFailure();
+		try {
+			writeRecord(out, record);
+		} catch (IOException e) {
+			throw fail(e);
+		}
+		sinceSnapshot++;
+		return ++appended;
+	}
+
+	/**
+	 * @throws IOException
+	 *             if writing or forcing the log failed before
+	 */
+	private synchronized void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Journal failed before.", failure);
+		}
+	}
+
+	/**
+	 * Makes the journal refuse all further appends.
+	 *
+	 * @return the given exception
+	 */
+	private synchronized IOException fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+			System.err.println("Journal failed, refusing further registrations: " + e.getMessage());
+		}
+		return e;
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is on disk. The
+	 * first thread to get here forces all records appended so far, the
+	 * others find their record forced already once they get their turn.
+	 */
+	private void sync(long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (synced < sequence) {
+				long target;
+				FileChannel channel;
+				synchronized (this) {
+					checkFailure();
+					try {
+						out.flush();
+					} catch (IOException e) {
+						throw fail(e);
+					}
+					target = appended;
+					syncs++;
+					channel = this.channel;
+				}
+				// Appends go on while we force.
+				try {
+					channel.force(false);
+				} catch (IOException e) {
+					throw fail(e);
+				}
+				synced = target;
+			}
+		}
+
+		if (isSnapshotDue() && snapshotting.compareAndSet(false, true)) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot();
+					} catch (IOException e) {
+						System.err.println("Could not take snapshot: " + e.getMessage());
+					} finally {
+						snapshotting.set(false);
+					}
+				}
+			}, "journal-snapshot");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private synchronized boolean isSnapshotDue() {
+		return sinceSnapshot >= interval && !closed && failure == null;
+	}
+
+	/**
+	 * Switches to a log of the next generation and writes a snapshot of that
+	 * generation, then deletes the previous log.
+	 */
+	void snapshot() throws IOException {
+		long next;
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (closed || failure != null) {
+					return;
+				}
+				try {
+					out.flush();
+					channel.force(false);
+					synced = appended;
+					out.close();
+					next = generation + 1;
+					open(next);
+				} catch (IOException e) {
+					throw fail(e);
+				}
+				sinceSnapshot = 0;
+			}
+		}
+
+		// The maps are only ever added to, so a view that already contains
+		// some registrations of the new log is fine, they are just applied
+		// twice on recovery.
+		File tmp = new File(dir, SNAPSHOT + ".tmp");
+		long count = 0;
+		try (FileOutputStream file = new FileOutputStream(tmp);
+				DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			snapshot.writeInt(MAGIC);
+			snapshot.writeLong(next);
+			// Patched once we know how many entries there are.
+			snapshot.writeLong(0);
+			for (Map.Entry<String, String> user : users.entrySet()) {
+				writeRecord(snapshot, userRecord(user.getKey(), user.getValue()));
+				count++;
+			}
+			for (Map.Entry<String, INameserver> zone : zones.entrySet()) {
+				writeRecord(snapshot, zoneRecord(zone.getKey(), zone.getValue()));
+				count++;
+			}
+			snapshot.flush();
+			file.getChannel().write(ByteBuffer.allocate(8).putLong(0, count), 12);
+			file.getChannel().force(false);
+		}
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		for (Map.Entry<Long, File> log : logs().entrySet()) {
+			if (log.getKey() < next) {
+				Files.deleteIfExists(log.getValue().toPath());
+			}
+		}
+
+		synchronized (this) {
+			snapshots++;
+			snapshotEntries = count;
+		}
+	}
+
+	private void open(long generation) throws IOException {
+		FileOutputStream file = new FileOutputStream(new File(dir, LOG + generation), true);
+		this.generation = generation;
+		this.channel = file.getChannel();
+		this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+	}
+
+	private TreeMap<Long, File> logs() {
+		TreeMap<Long, File> logs = new TreeMap<>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(LOG)) {
+					try {
+						logs.put(Long.parseLong(file.getName().substring(LOG.length())), file);
+					} catch (NumberFormatException ignored) {
+					}
+				}
+			}
+		}
+		return logs;
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+		out.writeInt(record.length);
+		out.writeInt(crc(record));
+		out.write(record);
+	}
+
+	private static int crc(byte[] b) {
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, b.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Forces what was appended and closes the log.
+	 */
+	void close() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				if (failure != null) {
+					// Whatever is left to write cannot be trusted.
+					channel.close();
+					return;
+				}
+				out.flush();
+				channel.force(false);
+				out.close();
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.ROOT,
+				"Generation: %d, %d records since the last snapshot%n"
+						+ "Records appended: %d, forced in %d syncs, %.1f records each%n"
+						+ "Snapshots: %d, the last with %d entries%n" + "Recovered %d log records in %d ms",
+				generation, sinceSnapshot, appended, syncs, syncs == 0 ? 0.0 : (double) appended / syncs,
+				snapshots, snapshotEntries, replayed, replayMillis)
+				+ (failure == null ? "" : String.format("%nFailed, refusing registrations: %s", failure));
+	}
+}
@@ -1,5 +1,6 @@
 package nameserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
@@ -11,10 +12,20 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import cli.Command;
 import cli.Shell;
@@ -23,6 +34,7 @@ import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 
 import util.Config;
+import util.ThreadPools;
 
 public class Nameserver implements INameserver, INameserverCli, Runnable {
 
@@ -40,6 +52,11 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 
 	private boolean isRoot;
 
+	private final Journal journal;
+
+	/* forwards batches to the nameservers of our zones */
+	private final ExecutorService forwarder;
+
 	/**
 	 * @param componentName
 	 *            the name of the component - represented in the prompt
@@ -65,6 +82,16 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 		this.shell.register(this);
 
 		this.isRoot = false;
+
+		/*
+		 * Registrations are kept in persistence.dir if it is set, taking a
+		 * snapshot every persistence.snapshot-interval registrations.
+		 */
+		String dir = config.getString("persistence.dir", null);
+		this.journal = dir == null ? null : new Journal(new File(dir), config.getInt(
+				"persistence.snapshot-interval", 100000), this.users, this.zones);
+
+		this.forwarder = ThreadPools.newTaskExecutor(config.getString("executor.mode", ThreadPools.PLATFORM));
 	}
 
 	@Override
@@ -82,6 +109,17 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 			logToShell("Root-nameserver has been started.");
 		}
 
+		/* restore registrations before anybody can reach us */
+		if (this.journal != null) {
+			try {
+				this.journal.recover();
+				this.logToShell("Restored " + this.users.size() + " users and " + this.zones.size() + " zones.");
+			} catch (IOException e) {
+				this.teardown("Restoring registrations failed: " + e.toString());
+				return;
+			}
+		}
+
 		if (this.isRoot) {
 			this.domain = "root-domain";
 
@@ -207,6 +245,14 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 		return ret;
 	}
 
+	@Command
+	public String journal() throws IOException {
+		if (this.journal == null) {
+			return "Registrations are not persisted.";
+		}
+		return this.journal.toString();
+	}
+
 	@Override
 	@Command
 	public String exit() throws IOException {
@@ -238,12 +284,20 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 		}
 
 		if (splitStr.length == 1) {
-			if (this.users.get(splitStr[0]) != null) {
+			if (this.users.putIfAbsent(splitStr[0], address) != null) {
 				throw new AlreadyRegisteredException("Already registered a user known as '" + splitStr[0]
 						+ "' . Therefore " + username + " cannot be registered on " + this.domain + ".");
 			}
 
-			this.users.put(splitStr[0], address);
+			if (this.journal != null) {
+				try {
+					this.journal.user(splitStr[0], address);
+				} catch (IOException e) {
+					// The registration may have reached the log, so we keep
+					// it, but cannot confirm it.
+					throw new RemoteException("Could not persist registration of " + username + ".", e);
+				}
+			}
 			this.logToShell("Successfully registered user " + splitStr[0] + " to domain " + this.domain);
 			return;
 		}
@@ -297,6 +351,205 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 		return ret;
 	}
 
+	@Override
+	public Resolution resolve(String name) throws RemoteException {
+		return resolve(name, name);
+	}
+
+	/**
+	 * @param name
+	 *            the fully qualified name to report in the resolution
+	 * @param rest
+	 *            what is left of it relative to our zone
+	 */
+	private Resolution resolve(String name, String rest) throws RemoteException {
+		String[] splitStr = this.stripToResolve(rest);
+
+		if (splitStr == null) {
+			this.logToShell("Bad Arguments for resolve passed.");
+			return new Resolution(name, null, this.domain);
+		}
+
+		if (splitStr.length == 1) {
+			return new Resolution(name, this.lookup(splitStr[0]), this.domain);
+		}
+
+		INameserver next = this.zones.get(splitStr[1]);
+
+		if (next == null) {
+			this.logToShell("No zone matching '" + splitStr[1] + "' found.");
+			return new Resolution(name, null, this.domain);
+		}
+
+		// Nameservers further down only know the name relative to their
+		// zone, so we fix up the name they report.
+		Resolution resolution = next.resolve(splitStr[0]);
+		return new Resolution(name, resolution.getAddress(), resolution.getZone());
+	}
+
+	@Override
+	public void ping() {
+	}
+
+	@Override
+	public Map<String, Exception> registerUsers(Map<String, String> addresses) throws RemoteException {
+		Map<String, Exception> errors = new HashMap<>();
+		Map<String, String> local = new HashMap<>();
+		Map<String, Map<String, String>> batches = new HashMap<>();
+
+		for (Map.Entry<String, String> entry : addresses.entrySet()) {
+			String[] splitStr = this.stripToResolve(entry.getKey());
+			if (splitStr == null || entry.getValue() == null) {
+				errors.put(entry.getKey(), new IllegalArgumentException("Bad Arguments for registering user passed."));
+			} else if (splitStr.length == 1) {
+				local.put(splitStr[0], entry.getValue());
+			} else {
+				if (!batches.containsKey(splitStr[1])) {
+					batches.put(splitStr[1], new HashMap<String, String>());
+				}
+				batches.get(splitStr[1]).put(splitStr[0], entry.getValue());
+			}
+		}
+
+		Map<String, Future<Map<String, Exception>>> forwarded = new HashMap<>();
+		for (final Map.Entry<String, Map<String, String>> batch : batches.entrySet()) {
+			final INameserver next = this.zones.get(batch.getKey());
+			if (next == null) {
+				this.logToShell("No zone matching '" + batch.getKey() + "' found.");
+				for (String name : batch.getValue().keySet()) {
+					errors.put(name + "." + batch.getKey(), new InvalidDomainException("No zone matching '"
+							+ batch.getKey() + "' found. Therefore " + name + "." + batch.getKey()
+							+ " cannot be registered on " + this.domain + "."));
+				}
+				continue;
+			}
+			forwarded.put(batch.getKey(), forward(new Callable<Map<String, Exception>>() {
+				@Override
+				public Map<String, Exception> call() throws RemoteException {
+					return next.registerUsers(batch.getValue());
+				}
+			}));
+		}
+
+		// Our own users are registered while the batches are on their way.
+		List<String> added = new ArrayList<>();
+		for (Map.Entry<String, String> entry : local.entrySet()) {
+			if (this.users.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+				errors.put(entry.getKey(), new AlreadyRegisteredException("Already registered a user known as '"
+						+ entry.getKey() + "' . Therefore " + entry.getKey() + " cannot be registered on "
+						+ this.domain + "."));
+			} else {
+				added.add(entry.getKey());
+			}
+		}
+		if (this.journal != null && !added.isEmpty()) {
+			Map<String, String> persisted = new HashMap<>();
+			for (String name : added) {
+				persisted.put(name, local.get(name));
+			}
+			try {
+				this.journal.users(persisted);
+			} catch (IOException e) {
+				for (String name : added) {
+					errors.put(name, new RemoteException("Could not persist registration of " + name + ".", e));
+				}
+				added.clear();
+			}
+		}
+		if (!added.isEmpty()) {
+			this.logToShell("Successfully registered " + added.size() + " users to domain " + this.domain);
+		}
+
+		for (Map.Entry<String, Future<Map<String, Exception>>> batch : forwarded.entrySet()) {
+			String suffix = "." + batch.getKey();
+			try {
+				for (Map.Entry<String, Exception> error : await(batch.getValue()).entrySet()) {
+					errors.put(error.getKey() + suffix, error.getValue());
+				}
+			} catch (Exception e) {
+				for (String name : batches.get(batch.getKey()).keySet()) {
+					errors.put(name + suffix, e);
+				}
+			}
+		}
+		return errors;
+	}
+
+	@Override
+	public Map<String, Resolution> lookupAll(Collection<String> names) throws RemoteException {
+		Map<String, Resolution> resolutions = new HashMap<>();
+		Map<String, List<String>> batches = new HashMap<>();
+
+		for (String name : names) {
+			String[] splitStr = this.stripToResolve(name);
+			if (splitStr == null) {
+				continue;
+			}
+			if (splitStr.length == 1) {
+				resolutions.put(name, new Resolution(name, this.users.get(name), this.domain));
+			} else if (!this.zones.containsKey(splitStr[1])) {
+				resolutions.put(name, new Resolution(name, null, this.domain));
+			} else {
+				if (!batches.containsKey(splitStr[1])) {
+					batches.put(splitStr[1], new ArrayList<String>());
+				}
+				batches.get(splitStr[1]).add(splitStr[0]);
+			}
+		}
+
+		Map<String, Future<Map<String, Resolution>>> forwarded = new HashMap<>();
+		for (final Map.Entry<String, List<String>> batch : batches.entrySet()) {
+			final INameserver next = this.zones.get(batch.getKey());
+			forwarded.put(batch.getKey(), forward(new Callable<Map<String, Resolution>>() {
+				@Override
+				public Map<String, Resolution> call() throws RemoteException {
+					return next.lookupAll(batch.getValue());
+				}
+			}));
+		}
+
+		for (Map.Entry<String, Future<Map<String, Resolution>>> batch : forwarded.entrySet()) {
+			// Nameservers further down only know the names relative to
+			// their zone, so we fix up the names they report.
+			String suffix = "." + batch.getKey();
+			try {
+				for (Resolution resolution : await(batch.getValue()).values()) {
+					String name = resolution.getName() + suffix;
+					resolutions.put(name, new Resolution(name, resolution.getAddress(), resolution.getZone(),
+							resolution.getError()));
+				}
+			} catch (Exception e) {
+				for (String name : batches.get(batch.getKey())) {
+					resolutions.put(name + suffix, new Resolution(name + suffix, null, this.domain, e));
+				}
+			}
+		}
+		return resolutions;
+	}
+
+	private <T> Future<T> forward(Callable<T> batch) throws RemoteException {
+		try {
+			return this.forwarder.submit(batch);
+		} catch (RejectedExecutionException e) {
+			throw new RemoteException("Nameserver is shutting down.", e);
+		}
+	}
+
+	/**
+	 * @throws Exception
+	 *             why the batch failed
+	 */
+	private static <T> T await(Future<T> batch) throws Exception {
+		try {
+			return batch.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+	}
+
 	@Override
 	public void registerNameserver(String domain, INameserver nameserver,
 			INameserverForChatserver nameserverForChatserver)
@@ -310,12 +563,21 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 		}
 
 		if (splitStr.length == 1) {
-			if (this.zones.get(splitStr[0]) != null) {
+			INameserver existing = this.zones.putIfAbsent(splitStr[0], nameserver);
+			// A restarted nameserver registers again, while we might still
+			// know its predecessor, e.g. from our journal.
+			if (existing != null && (isReachable(existing) || !this.zones.replace(splitStr[0], existing, nameserver))) {
 				throw new AlreadyRegisteredException("Already registered a nameserver known as '" + splitStr[0]
 						+ "' . Therefore " + domain + " cannot be registered on " + this.domain + ".");
 			}
 
-			this.zones.put(splitStr[0], nameserver);
+			if (this.journal != null) {
+				try {
+					this.journal.zone(splitStr[0], nameserver);
+				} catch (IOException e) {
+					throw new RemoteException("Could not persist registration of " + domain + ".", e);
+				}
+			}
 			this.logToShell("Successfully registered zone " + splitStr[0] + " to domain " + this.domain);
 			return;
 		}
@@ -334,6 +596,16 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 
 	/* private methods */
 
+	private boolean isReachable(INameserver nameserver) {
+		try {
+			nameserver.ping();
+			return true;
+		} catch (RemoteException e) {
+			this.logToShell("Replacing unreachable nameserver: " + e.toString());
+			return false;
+		}
+	}
+
 	public void teardown() {
 		this.teardown(null);
 
@@ -364,6 +636,16 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 			}
 		}
 
+		this.forwarder.shutdownNow();
+
+		if (this.journal != null) {
+			try {
+				this.journal.close();
+			} catch (IOException e) {
+				System.err.println("Error while closing journal: " + e.getMessage());
+			}
+		}
+
 		/* close streams */
 		this.shell.close();
 
@@ -0,0 +1,77 @@
+package nameserver;
+
+import java.io.Serializable;
+
+/**
+ * Result of resolving a fully qualified user name, see
+ * {@link INameserverForChatserver#resolve(String)}.
+ */
+public class Resolution implements Serializable {
+	private static final long serialVersionUID = 2968148705323961537L;
+
+	private final String name;
+	private final String address;
+	private final String zone;
+	private final Exception error;
+
+	/**
+	 * @param address
+	 *            the address of the user, or {@code null} if there is none
+	 * @param zone
+	 *            the zone of the nameserver that gave the answer
+	 */
+	public Resolution(String name, String address, String zone) {
+		this(name, address, zone, null);
+	}
+
+	/**
+	 * @param error
+	 *            why the name could not be resolved, if it is not just
+	 *            unknown
+	 */
+	public Resolution(String name, String address, String zone, Exception error) {
+		this.name = name;
+		this.address = address;
+		this.zone = zone;
+		this.error = error;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the address of the user, or {@code null} if the name could not
+	 *         be resolved
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the zone of the nameserver that is authoritative for the name,
+	 *         or the deepest zone that was found if resolution failed
+	 */
+	public String getZone() {
+		return zone;
+	}
+
+	public boolean isResolved() {
+		return address != null;
+	}
+
+	/**
+	 * @return why the name could not be resolved, e.g. because the
+	 *         nameserver of a zone was unreachable, or {@code null} if it was
+	 *         resolved or is unknown
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return name + " -> " + (address != null ? address : error != null ? error.toString() : "unknown") + " (" + zone
+				+ ")";
+	}
+}
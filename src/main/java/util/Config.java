@@ -39,6 +39,23 @@ public final class Config {
 		return this.bundle.getString(key);
 	}
 
+	/**
+	 * Returns the value as String for the given key, or the given default if
+	 * the key is not configured.
+	 *
+	 * @param key
+	 *            the property's key
+	 * @param defaultValue
+	 *            the value to return if the key is missing
+	 * @return String value of the property
+	 */
+	public String getString(String key, String defaultValue) {
+		if (properties.containsKey(key)) {
+			return properties.get(key).toString();
+		}
+		return this.bundle.containsKey(key) ? this.bundle.getString(key) : defaultValue;
+	}
+
 	/**
 	 * Returns the value as {@code int} for the given key.
 	 *
@@ -52,6 +69,23 @@ public final class Config {
 		return Integer.parseInt(getString(key));
 	}
 
+	/**
+	 * Returns the value as {@code int} for the given key, or the given default
+	 * if the key is not configured.
+	 *
+	 * @param key
+	 *            the property's key
+	 * @param defaultValue
+	 *            the value to return if the key is missing
+	 * @return int value of the property
+	 * @throws NumberFormatException
+	 *             if the String cannot be parsed to an Integer
+	 */
+	public int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
 	/**
 	 * Sets the value for the given key.
 	 *
@@ -0,0 +1,88 @@
+package util;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The operations of the handshake, run with ciphers from
+ * {@link SecurityUtils#cipher(String)} and with a private key that is loaded
+ * once.
+ */
+public final class CryptoContext {
+	private final PrivateKey privateKey;
+
+	public CryptoContext(PrivateKey privateKey) {
+		this.privateKey = privateKey;
+	}
+
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	/**
+	 * Decrypts using {@link SecurityUtils#ASYMMETRIC_SPEC} and our private
+	 * key.
+	 */
+	public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+		Cipher cipher = SecurityUtils.cipher(SecurityUtils.ASYMMETRIC_SPEC);
+		cipher.init(Cipher.DECRYPT_MODE, privateKey);
+		return cipher.doFinal(ciphertext);
+	}
+
+	/**
+	 * Encrypts using {@link SecurityUtils#ASYMMETRIC_SPEC} for the owner of
+	 * the given key.
+	 */
+	public static byte[] encrypt(PublicKey key, byte[] plaintext) throws GeneralSecurityException {
+		Cipher cipher = SecurityUtils.cipher(SecurityUtils.ASYMMETRIC_SPEC);
+		cipher.init(Cipher.ENCRYPT_MODE, key);
+		return cipher.doFinal(plaintext);
+	}
+
+	/**
+	 * Signs using {@link SecurityUtils#SIGNATURE_SPEC} and our private key.
+	 */
+	public byte[] sign(byte[] data) throws GeneralSecurityException {
+		Signature signature = SecurityUtils.newSignature(SecurityUtils.SIGNATURE_SPEC);
+		signature.initSign(privateKey);
+		signature.update(data);
+		return signature.sign();
+	}
+
+	/**
+	 * Checks a signature made using {@link SecurityUtils#SIGNATURE_SPEC} by
+	 * the owner of the given key.
+	 */
+	public static boolean verify(PublicKey key, byte[] data, byte[] sig) throws GeneralSecurityException {
+		Signature signature = SecurityUtils.newSignature(SecurityUtils.SIGNATURE_SPEC);
+		signature.initVerify(key);
+		signature.update(data);
+		return signature.verify(sig);
+	}
+
+	/**
+	 * Encrypts or decrypts a single message using
+	 * {@link SecurityUtils#SYMMETRIC_SPEC}.
+	 */
+	public static byte[] symmetric(int mode, byte[] secret, byte[] iv, byte[] input) throws GeneralSecurityException {
+		Cipher cipher = SecurityUtils.cipher(SecurityUtils.SYMMETRIC_SPEC);
+		cipher.init(mode, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
+		return cipher.doFinal(input);
+	}
+
+	/**
+	 * @return a new cipher using {@link SecurityUtils#SYMMETRIC_SPEC}, for a
+	 *         stream that outlives the handshake
+	 */
+	public static Cipher newSymmetricCipher(int mode, byte[] secret, byte[] iv) throws GeneralSecurityException {
+		Cipher cipher = SecurityUtils.newCipher(SecurityUtils.SYMMETRIC_SPEC);
+		cipher.init(mode, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
+		return cipher;
+	}
+}
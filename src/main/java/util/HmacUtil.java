@@ -3,10 +3,9 @@ package util;
 import java.io.File;
 import java.io.IOException;
 
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Mac;
 
@@ -32,9 +31,9 @@ public class HmacUtil {
 		}
 
 		try {
-			hmac = Mac.getInstance("HmacSHA256");
+			hmac = SecurityUtils.newMac("HmacSHA256");
 			hmac.init(key);
-		} catch (NoSuchAlgorithmException|InvalidKeyException e) {
+		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 		}
 	}
@@ -3,8 +3,21 @@ package util;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.encoders.Base64;
 
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
 
 /**
  * Please note that this class is not needed for Lab 1, but can later be
@@ -16,6 +29,7 @@ public final class SecurityUtils {
 
 	public static final String ASYMMETRIC_SPEC = "RSA/NONE/OAEPWithSHA256AndMGF1Padding";
 	public static final String SYMMETRIC_SPEC = "AES/CTR/NoPadding";
+	public static final String SIGNATURE_SPEC = "SHA256withRSA";
 
 	static {
 		r = new SecureRandom();
@@ -24,15 +38,70 @@ public final class SecurityUtils {
 	private static SecureRandom r;
 
 	/**
-	 * Registers the {@link BouncyCastleProvider} as the primary security
-	 * provider if necessary.
+	 * Prefix of the configuration keys that choose a provider for an
+	 * algorithm family, e.g. {@code crypto.provider.AES=SunJCE}.
+	 */
+	public static final String PROVIDER_PREFIX = "crypto.provider.";
+
+	// Provider lookups walk all installed providers and parse the
+	// transformation, so they are done once per type and transformation.
+	private static final ConcurrentMap<String, Provider> providers = new ConcurrentHashMap<>();
+
+	// Provider names chosen per algorithm family.
+	private static final ConcurrentMap<String, String> preferred = new ConcurrentHashMap<>();
+
+	private static final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>() {
+		@Override
+		protected Map<String, Cipher> initialValue() {
+			return new HashMap<>();
+		}
+	};
+
+	/**
+	 * Registers the {@link BouncyCastleProvider} as the last security
+	 * provider if necessary. It is needed to read PEM files and for
+	 * {@link #ASYMMETRIC_SPEC}, everything else is left to the faster
+	 * providers of the JDK unless configured otherwise, see
+	 * {@link #configureProviders(Config)}.
 	 */
 	public static synchronized void registerBouncyCastle() {
 		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
-			Security.insertProviderAt(new BouncyCastleProvider(), 0);
+			Security.addProvider(new BouncyCastleProvider());
 		}
 	}
 
+	/**
+	 * Chooses providers by algorithm family from all keys starting with
+	 * {@link #PROVIDER_PREFIX}, see {@link #setProvider(String, String)}.
+	 */
+	public static void configureProviders(Config config) {
+		for (String key : config.listKeys()) {
+			if (key.startsWith(PROVIDER_PREFIX)) {
+				setProvider(key.substring(PROVIDER_PREFIX.length()), config.getString(key));
+			}
+		}
+	}
+
+	/**
+	 * Makes later lookups for an algorithm family use the given provider.
+	 *
+	 * @param family
+	 *            a cipher transformation or a prefix of it, e.g. "AES" or
+	 *            "AES/GCM" for "AES/GCM/NoPadding", or the name of a MAC or
+	 *            signature algorithm, e.g. "HmacSHA256"
+	 * @param provider
+	 *            the name of the provider, or an empty string to use the
+	 *            first installed provider that supports the algorithm
+	 */
+	public static void setProvider(String family, String provider) {
+		if (provider == null || provider.trim().isEmpty()) {
+			preferred.remove(family);
+		} else {
+			preferred.put(family, provider.trim());
+		}
+		providers.clear();
+	}
+
 	public static String randomBytesEncoded(int n) {
 		byte[] tmp = new byte[n];
 		r.nextBytes(tmp);
@@ -44,4 +113,114 @@ public final class SecurityUtils {
 		r.nextBytes(tmp);
 		return tmp;
 	}
+
+	/**
+	 * Creates a cipher for the given transformation, using the provider that
+	 * was found for it the first time. Use this for ciphers that live longer
+	 * than a single operation, e.g. for a session.
+	 */
+	public static Cipher newCipher(String transformation) throws GeneralSecurityException {
+		Provider provider = provider("Cipher", transformation);
+		if (provider != null) {
+			try {
+				return Cipher.getInstance(transformation, provider);
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+				unsupported("Cipher", transformation, provider);
+			}
+		}
+
+		Cipher cipher = Cipher.getInstance(transformation);
+		providers.putIfAbsent("Cipher." + transformation, cipher.getProvider());
+		return cipher;
+	}
+
+	/**
+	 * Creates a MAC for the given algorithm, like {@link #newCipher(String)}.
+	 */
+	public static Mac newMac(String algorithm) throws GeneralSecurityException {
+		Provider provider = provider("Mac", algorithm);
+		if (provider != null) {
+			try {
+				return Mac.getInstance(algorithm, provider);
+			} catch (NoSuchAlgorithmException e) {
+				unsupported("Mac", algorithm, provider);
+			}
+		}
+
+		Mac mac = Mac.getInstance(algorithm);
+		providers.putIfAbsent("Mac." + algorithm, mac.getProvider());
+		return mac;
+	}
+
+	/**
+	 * Creates a signature for the given algorithm, like
+	 * {@link #newCipher(String)}.
+	 */
+	public static Signature newSignature(String algorithm) throws GeneralSecurityException {
+		Provider provider = provider("Signature", algorithm);
+		if (provider != null) {
+			try {
+				return Signature.getInstance(algorithm, provider);
+			} catch (NoSuchAlgorithmException e) {
+				unsupported("Signature", algorithm, provider);
+			}
+		}
+
+		Signature signature = Signature.getInstance(algorithm);
+		providers.putIfAbsent("Signature." + algorithm, signature.getProvider());
+		return signature;
+	}
+
+	/**
+	 * @return the provider to use for the given algorithm, or {@code null} if
+	 *         it has yet to be looked up
+	 */
+	private static Provider provider(String type, String algorithm) throws NoSuchProviderException {
+		Provider provider = providers.get(type + "." + algorithm);
+		if (provider != null) {
+			return provider;
+		}
+
+		// The most specific family wins, e.g. "AES/GCM" over "AES".
+		String family = algorithm;
+		String name = preferred.get(family);
+		while (name == null && family.lastIndexOf('/') > 0) {
+			family = family.substring(0, family.lastIndexOf('/'));
+			name = preferred.get(family);
+		}
+		if (name == null) {
+			return null;
+		}
+		provider = Security.getProvider(name);
+		if (provider == null) {
+			throw new NoSuchProviderException("Provider " + name + " is not installed.");
+		}
+		providers.putIfAbsent(type + "." + algorithm, provider);
+		return provider;
+	}
+
+	/**
+	 * Falls back to the first installed provider that supports the algorithm,
+	 * for this and later lookups.
+	 */
+	private static void unsupported(String type, String algorithm, Provider provider) {
+		System.err.println("Provider " + provider.getName() + " does not support " + algorithm + ", using the default.");
+		providers.remove(type + "." + algorithm, provider);
+	}
+
+	/**
+	 * Hands out a cipher for the given transformation that is confined to the
+	 * calling thread and reused by later calls on the same thread. It has to
+	 * be initialized before every use, and must neither be kept after the
+	 * operation at hand nor passed to other threads.
+	 */
+	public static Cipher cipher(String transformation) throws GeneralSecurityException {
+		Map<String, Cipher> map = ciphers.get();
+		Cipher cipher = map.get(transformation);
+		if (cipher == null) {
+			cipher = newCipher(transformation);
+			map.put(transformation, cipher);
+		}
+		return cipher;
+	}
 }
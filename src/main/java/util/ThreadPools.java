@@ -0,0 +1,51 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors that run blocking per-connection tasks.
+ * <p/>
+ * In {@code virtual} mode every task gets a virtual thread of its own, so a
+ * task blocking on a socket only costs its (small) stack. Virtual threads
+ * are looked up reflectively, so that the code still compiles and runs on
+ * runtimes without them. There, as in {@code platform} mode, a cached pool of
+ * platform threads is used.
+ */
+public final class ThreadPools {
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	private ThreadPools() {
+	}
+
+	/**
+	 * @param mode
+	 *            either {@link #PLATFORM} or {@link #VIRTUAL}
+	 * @return a new executor that starts tasks right away
+	 */
+	public static ExecutorService newTaskExecutor(String mode) {
+		if (VIRTUAL.equals(mode)) {
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if (executor != null) {
+				return executor;
+			}
+			System.err.println("Virtual threads are not supported by this runtime, using platform threads.");
+		} else if (!PLATFORM.equals(mode)) {
+			throw new IllegalArgumentException("Unknown executor mode " + mode + ".");
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			// Either the method does not exist, or virtual threads are a
+			// preview feature that was not enabled.
+			return null;
+		}
+	}
+}
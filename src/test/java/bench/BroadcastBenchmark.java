@@ -0,0 +1,116 @@
+package bench;
+
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import util.NullOutputStream;
+import util.SecurityUtils;
+
+import common.BinaryCodec;
+import common.DirectCipherOutputStream;
+import common.DTOOutputStream;
+import common.EncodedFrame;
+import dto.MessageDTO;
+
+/**
+ * Measures the cost of broadcasting one public message depending on the
+ * number of online users.
+ * <p/>
+ * Every recipient gets a stream of its own that encrypts with AES/CTR and
+ * discards the result, so that only encoding and encryption are measured.
+ * Compares building and serializing the message for every recipient, as
+ * done before, with encoding it once and only encrypting per recipient.
+ * <p/>
+ * Run with {@code ant bench -Dbench=BroadcastBenchmark}.
+ */
+public class BroadcastBenchmark {
+	private static final int[] RECIPIENTS = { 1, 10, 100, 1000 };
+	private static final int MESSAGES = 100000;
+	private static final String NAME = "alice.vienna.at";
+	private static final String TEXT = "Hello everybody, how are you doing today?";
+
+	private interface Broadcast {
+		void run(ObjectOutput[] outs) throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+
+		System.out.println(String.format("%-22s %10s %14s %14s", "strategy", "recipients", "ns/broadcast", "ns/recipient"));
+
+		for (int n : RECIPIENTS) {
+			run("serialize-each", n, false, new Broadcast() {
+				@Override
+				public void run(ObjectOutput[] outs) throws IOException {
+					for (ObjectOutput out : outs) {
+						out.writeObject(new MessageDTO(NAME + ": " + TEXT));
+						out.flush();
+						// Keep the handle table from growing over the run.
+						((ObjectOutputStream) out).reset();
+					}
+				}
+			});
+
+			run("encode-each", n, true, new Broadcast() {
+				@Override
+				public void run(ObjectOutput[] outs) throws IOException {
+					for (ObjectOutput out : outs) {
+						out.write(BinaryCodec.encode(new MessageDTO(NAME + ": " + TEXT)));
+						out.flush();
+					}
+				}
+			});
+
+			run("encode-once", n, true, new Broadcast() {
+				@Override
+				public void run(ObjectOutput[] outs) throws IOException {
+					EncodedFrame frame = EncodedFrame.of(new MessageDTO(NAME + ": " + TEXT));
+					for (ObjectOutput out : outs) {
+						frame.writeTo(out);
+						out.flush();
+					}
+				}
+			});
+		}
+	}
+
+	private static void run(String name, int n, boolean binary, Broadcast broadcast) throws Exception {
+		ObjectOutput[] outs = new ObjectOutput[n];
+		for (int i = 0; i < n; i++) {
+			DirectCipherOutputStream os = new DirectCipherOutputStream(NullOutputStream.getInstance(), newCipher());
+			outs[i] = binary ? new DTOOutputStream(os) : new ObjectOutputStream(os);
+		}
+
+		// Keep the total amount of work roughly constant, so that large
+		// numbers of recipients do not take forever.
+		int rounds = Math.max(100, MESSAGES / n);
+
+		// Warm up.
+		for (int i = 0; i < rounds; i++) {
+			broadcast.run(outs);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			broadcast.run(outs);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format(Locale.ROOT, "%-22s %10d %14.0f %14.1f", name, n, (double) elapsed / rounds,
+				(double) elapsed / rounds / n));
+	}
+
+	private static Cipher newCipher() throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC);
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SecurityUtils.randomBytes(32), "AES"),
+				new IvParameterSpec(SecurityUtils.randomBytes(16)));
+		return cipher;
+	}
+}
@@ -0,0 +1,157 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import util.NullOutputStream;
+import util.SecurityUtils;
+
+import common.CipherInputStream;
+import common.CipherOutputStream;
+import common.DirectCipherInputStream;
+import common.DirectCipherOutputStream;
+
+/**
+ * Compares the cipher streams that get a fresh array from the cipher for
+ * every call with the ones that reuse their buffers, in time and in bytes
+ * allocated per message.
+ * <p/>
+ * Messages are written both in one piece and byte by byte, and read back in
+ * one piece. Allocations are taken from the thread's allocation counter, so
+ * they include everything the provider allocates internally.
+ * <p/>
+ * Run with {@code ant bench -Dbench=CipherStreamBenchmark}.
+ */
+public class CipherStreamBenchmark {
+	private static final int[] SIZES = { 64, 1024, 16384 };
+	private static final int BYTES = 64 << 20;
+
+	private interface Factory {
+		OutputStream output(OutputStream os, Cipher c);
+
+		InputStream input(InputStream is, Cipher c);
+	}
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+
+		System.out.println(String.format("%-8s %-12s %8s %12s %12s", "streams", "operation", "size", "ns/message",
+				"bytes/msg"));
+
+		Factory[] factories = { new Factory() {
+			@Override
+			public OutputStream output(OutputStream os, Cipher c) {
+				return new CipherOutputStream(os, c);
+			}
+
+			@Override
+			public InputStream input(InputStream is, Cipher c) {
+				return new CipherInputStream(is, c);
+			}
+
+			@Override
+			public String toString() {
+				return "old";
+			}
+		}, new Factory() {
+			@Override
+			public OutputStream output(OutputStream os, Cipher c) {
+				return new DirectCipherOutputStream(os, c);
+			}
+
+			@Override
+			public InputStream input(InputStream is, Cipher c) {
+				return new DirectCipherInputStream(is, c);
+			}
+
+			@Override
+			public String toString() {
+				return "direct";
+			}
+		} };
+
+		for (int size : SIZES) {
+			for (Factory factory : factories) {
+				final byte[] message = SecurityUtils.randomBytes(size);
+				final OutputStream os = factory.output(NullOutputStream.getInstance(), newCipher(Cipher.ENCRYPT_MODE));
+				int rounds = BYTES / size;
+
+				run(factory, "write", size, rounds, new Operation() {
+					@Override
+					public void run() throws Exception {
+						os.write(message);
+					}
+				});
+
+				run(factory, "write(int)", size, rounds / 8, new Operation() {
+					@Override
+					public void run() throws Exception {
+						for (byte b : message) {
+							os.write(b);
+						}
+					}
+				});
+
+				// Read the same ciphertext over and over, the content does
+				// not matter for CTR.
+				final byte[] ciphertext = new byte[size * 64];
+				final byte[] target = new byte[size];
+				final ByteArrayInputStream bytes = new ByteArrayInputStream(ciphertext);
+				final InputStream is = factory.input(bytes, newCipher(Cipher.DECRYPT_MODE));
+
+				run(factory, "read", size, rounds, new Operation() {
+					@Override
+					public void run() throws Exception {
+						if (bytes.available() == 0) {
+							bytes.reset();
+						}
+						for (int n = 0; n < target.length;) {
+							n += is.read(target, n, target.length - n);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private static void run(Factory factory, String name, int size, int rounds, Operation operation) throws Exception {
+		// Warm up.
+		for (int i = 0; i < rounds; i++) {
+			operation.run();
+		}
+
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			operation.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+
+		System.out.println(String.format(Locale.ROOT, "%-8s %-12s %8d %12.0f %12.1f", factory, name, size,
+				(double) elapsed / rounds, (double) allocated / rounds));
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	private static Cipher newCipher(int mode) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC);
+		cipher.init(mode, new SecretKeySpec(new byte[32], "AES"), new IvParameterSpec(new byte[16]));
+		return cipher;
+	}
+}
@@ -0,0 +1,262 @@
+package bench;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import util.SecurityUtils;
+
+/**
+ * Measures every installed provider for the algorithms used by client and
+ * chatserver on the running JVM, to help choosing providers with
+ * {@link SecurityUtils#PROVIDER_PREFIX}.
+ * <p/>
+ * Bulk algorithms are reported in MB/s over 16 KiB buffers, RSA and X25519
+ * in operations per second. Combinations a provider does not support are
+ * left out.
+ * <p/>
+ * Run with {@code ant bench -Dbench=CryptoBenchmark}.
+ */
+public class CryptoBenchmark {
+	private static final int BUFFER = 16384;
+	private static final long WARMUP = 500;
+	private static final long DURATION = 1000;
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	private interface Factory {
+		/**
+		 * @return the operation to measure, using the given provider
+		 */
+		Operation create(Provider provider) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		SecurityUtils.registerBouncyCastle();
+
+		final byte[] data = SecurityUtils.randomBytes(BUFFER);
+		final byte[] out = new byte[BUFFER + 16];
+		final SecretKeySpec aes = new SecretKeySpec(SecurityUtils.randomBytes(32), "AES");
+		final SecretKeySpec hmac = new SecretKeySpec(SecurityUtils.randomBytes(32), "HmacSHA256");
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		final KeyPair rsa = generator.generateKeyPair();
+		final KeyPair x25519 = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+		final KeyPair peer = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+		final byte[] secret = SecurityUtils.randomBytes(32);
+
+		System.out.println(String.format("%-46s %-12s %14s", "algorithm", "provider", "throughput"));
+
+		bulk(SecurityUtils.SYMMETRIC_SPEC, new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Cipher cipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_SPEC, provider);
+				cipher.init(Cipher.ENCRYPT_MODE, aes, new IvParameterSpec(new byte[16]));
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						cipher.update(data, 0, BUFFER, out, 0);
+					}
+				};
+			}
+		});
+
+		bulk("AES/GCM/NoPadding", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", provider);
+				final byte[] nonce = new byte[12];
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						// A nonce must not be reused with the same key.
+						for (int i = 0; i < nonce.length && ++nonce[i] == 0; i++) {
+						}
+						cipher.init(Cipher.ENCRYPT_MODE, aes, new GCMParameterSpec(128, nonce));
+						cipher.doFinal(data, 0, BUFFER, out, 0);
+					}
+				};
+			}
+		});
+
+		bulk("HmacSHA256", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Mac mac = Mac.getInstance("HmacSHA256", provider);
+				mac.init(hmac);
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						mac.update(data);
+						mac.doFinal();
+					}
+				};
+			}
+		});
+
+		bulk("SHA-256", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final MessageDigest digest = MessageDigest.getInstance("SHA-256", provider);
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						digest.update(data);
+						digest.digest();
+					}
+				};
+			}
+		});
+
+		ops(SecurityUtils.ASYMMETRIC_SPEC + " encrypt", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Cipher cipher = Cipher.getInstance(SecurityUtils.ASYMMETRIC_SPEC, provider);
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						cipher.init(Cipher.ENCRYPT_MODE, rsa.getPublic());
+						cipher.doFinal(secret);
+					}
+				};
+			}
+		});
+
+		ops(SecurityUtils.ASYMMETRIC_SPEC + " decrypt", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Cipher cipher = Cipher.getInstance(SecurityUtils.ASYMMETRIC_SPEC, provider);
+				cipher.init(Cipher.ENCRYPT_MODE, rsa.getPublic());
+				final byte[] encrypted = cipher.doFinal(secret);
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						cipher.init(Cipher.DECRYPT_MODE, rsa.getPrivate());
+						cipher.doFinal(encrypted);
+					}
+				};
+			}
+		});
+
+		ops(SecurityUtils.SIGNATURE_SPEC + " sign", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Signature signature = Signature.getInstance(SecurityUtils.SIGNATURE_SPEC, provider);
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						signature.initSign(rsa.getPrivate());
+						signature.update(secret);
+						signature.sign();
+					}
+				};
+			}
+		});
+
+		ops(SecurityUtils.SIGNATURE_SPEC + " verify", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final Signature signature = Signature.getInstance(SecurityUtils.SIGNATURE_SPEC, provider);
+				signature.initSign(rsa.getPrivate());
+				signature.update(secret);
+				final byte[] signed = signature.sign();
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						signature.initVerify(rsa.getPublic());
+						signature.update(secret);
+						signature.verify(signed);
+					}
+				};
+			}
+		});
+
+		ops("X25519 agree", new Factory() {
+			@Override
+			public Operation create(Provider provider) throws Exception {
+				final KeyAgreement agreement = KeyAgreement.getInstance("X25519", provider);
+				return new Operation() {
+					@Override
+					public void run() throws Exception {
+						agreement.init(x25519.getPrivate());
+						agreement.doPhase(peer.getPublic(), true);
+						agreement.generateSecret();
+					}
+				};
+			}
+		});
+	}
+
+	private static void bulk(String name, Factory factory) throws Exception {
+		for (Provider provider : Security.getProviders()) {
+			Operation operation = create(factory, provider);
+			if (operation != null) {
+				double seconds = measure(operation);
+				report(name, provider, String.format(Locale.ROOT, "%9.1f MB/s", BUFFER / seconds / 1e6));
+			}
+		}
+	}
+
+	private static void ops(String name, Factory factory) throws Exception {
+		for (Provider provider : Security.getProviders()) {
+			Operation operation = create(factory, provider);
+			if (operation != null) {
+				double seconds = measure(operation);
+				report(name, provider, String.format(Locale.ROOT, "%8.0f ops/s", 1 / seconds));
+			}
+		}
+	}
+
+	/**
+	 * @return {@code null} if the provider does not support the algorithm
+	 *         or the key at hand
+	 */
+	private static Operation create(Factory factory, Provider provider) throws Exception {
+		try {
+			Operation operation = factory.create(provider);
+			operation.run();
+			return operation;
+		} catch (GeneralSecurityException | UnsupportedOperationException | IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the seconds taken by one run of the operation
+	 */
+	private static double measure(Operation operation) throws Exception {
+		long end = System.currentTimeMillis() + WARMUP;
+		while (System.currentTimeMillis() < end) {
+			operation.run();
+		}
+
+		long runs = 0;
+		long start = System.nanoTime();
+		long stop = start + DURATION * 1000000;
+		long now;
+		do {
+			operation.run();
+			runs++;
+		} while ((now = System.nanoTime()) < stop);
+		return (now - start) / 1e9 / runs;
+	}
+
+	private static void report(String name, Provider provider, String throughput) {
+		System.out.println(String.format("%-46s %-12s %14s", name, provider.getName(), throughput));
+	}
+}
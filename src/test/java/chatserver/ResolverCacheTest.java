@@ -0,0 +1,247 @@
+package chatserver;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nameserver.Resolution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResolverCacheTest {
+	/**
+	 * Resolves names from a map, counting calls, and optionally waits for a
+	 * latch before answering.
+	 */
+	private static class FakeResolver implements ResolverCache.Resolver {
+		final Map<String, String> addresses = new ConcurrentHashMap<>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch called = new CountDownLatch(1);
+		volatile CountDownLatch release = null;
+		volatile boolean failing = false;
+
+		@Override
+		public Resolution resolve(String name) throws RemoteException {
+			CountDownLatch latch = release;
+			calls.incrementAndGet();
+			String address = addresses.get(name);
+			called.countDown();
+			if (latch != null) {
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new RemoteException("Interrupted.", e);
+				}
+			}
+			if (failing) {
+				throw new RemoteException("Nameserver unreachable.");
+			}
+			return new Resolution(name, address, "at.");
+		}
+	}
+
+	private FakeResolver resolver;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		resolver = new FakeResolver();
+		resolver.addresses.put("alice.vienna.at", "127.0.0.1:1000");
+		resolver.addresses.put("bill.de", "127.0.0.1:2000");
+		resolver.addresses.put("carol.at", "127.0.0.1:3000");
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private Future<Resolution> resolveLater(final ResolverCache cache, final String name) {
+		return executor.submit(new Callable<Resolution>() {
+			@Override
+			public Resolution call() throws RemoteException {
+				return cache.resolve(name);
+			}
+		});
+	}
+
+	@Test
+	public void cachesResolutions() throws RemoteException {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		Resolution first = cache.resolve("alice.vienna.at");
+		assertEquals("127.0.0.1:1000", first.getAddress());
+		assertSame(first, cache.resolve("alice.vienna.at"));
+		assertEquals(1, resolver.calls.get());
+		assertThat(cache.toString(), containsString("Hits: 1, for unknown users: 0"));
+		assertThat(cache.toString(), containsString("Misses: 1,"));
+	}
+
+	@Test
+	public void expiresResolutions() throws Exception {
+		ResolverCache cache = new ResolverCache(resolver, 50, 60000, 16);
+		cache.resolve("alice.vienna.at");
+		Thread.sleep(100);
+		resolver.addresses.put("alice.vienna.at", "127.0.0.1:1001");
+		assertEquals("127.0.0.1:1001", cache.resolve("alice.vienna.at").getAddress());
+		assertEquals(2, resolver.calls.get());
+	}
+
+	@Test
+	public void keepsUnknownNamesForNegativeTtl() throws Exception {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 50, 16);
+		assertFalse(cache.resolve("nobody.at").isResolved());
+		assertFalse(cache.resolve("nobody.at").isResolved());
+		assertEquals(1, resolver.calls.get());
+		assertThat(cache.toString(), containsString("for unknown users: 1"));
+
+		Thread.sleep(100);
+		resolver.addresses.put("nobody.at", "127.0.0.1:4000");
+		assertEquals("127.0.0.1:4000", cache.resolve("nobody.at").getAddress());
+		assertEquals(2, resolver.calls.get());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws RemoteException {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 2);
+		cache.resolve("alice.vienna.at");
+		cache.resolve("bill.de");
+		// Alice is now more recently used than Bill.
+		cache.resolve("alice.vienna.at");
+		cache.resolve("carol.at");
+		assertEquals(3, resolver.calls.get());
+		assertThat(cache.toString(), containsString("Evictions: 1"));
+
+		cache.resolve("alice.vienna.at");
+		assertEquals(3, resolver.calls.get());
+		cache.resolve("bill.de");
+		assertEquals(4, resolver.calls.get());
+	}
+
+	@Test
+	public void cachesNothingWithoutSize() throws RemoteException {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 0);
+		cache.resolve("alice.vienna.at");
+		cache.resolve("alice.vienna.at");
+		assertEquals(2, resolver.calls.get());
+	}
+
+	@Test
+	public void doesNotCacheErrors() throws RemoteException {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		resolver.failing = true;
+		try {
+			cache.resolve("alice.vienna.at");
+			fail();
+		} catch (RemoteException expected) {
+		}
+
+		resolver.failing = false;
+		assertEquals("127.0.0.1:1000", cache.resolve("alice.vienna.at").getAddress());
+		assertEquals(2, resolver.calls.get());
+	}
+
+	@Test
+	public void invalidatesResolutions() throws RemoteException {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		cache.resolve("alice.vienna.at");
+		resolver.addresses.put("alice.vienna.at", "127.0.0.1:1001");
+		cache.invalidate("alice.vienna.at");
+		assertEquals("127.0.0.1:1001", cache.resolve("alice.vienna.at").getAddress());
+		assertEquals(2, resolver.calls.get());
+	}
+
+	@Test
+	public void coalescesConcurrentMisses() throws Exception {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		resolver.release = new CountDownLatch(1);
+
+		Future<Resolution> first = resolveLater(cache, "alice.vienna.at");
+		assertTrue(resolver.called.await(10, TimeUnit.SECONDS));
+		Future<Resolution> second = resolveLater(cache, "alice.vienna.at");
+
+		// Wait until the second lookup found the first one running.
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!cache.toString().contains("coalesced with another miss: 1")
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		resolver.release.countDown();
+
+		assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, resolver.calls.get());
+		assertThat(cache.toString(), containsString("Misses: 1, coalesced with another miss: 1"));
+	}
+
+	/**
+	 * A lookup that was running while its name was invalidated may carry the
+	 * old address, which must not be cached.
+	 */
+	@Test
+	public void doesNotCacheMissRacingWithInvalidation() throws Exception {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		resolver.release = new CountDownLatch(1);
+
+		Future<Resolution> stale = resolveLater(cache, "alice.vienna.at");
+		assertTrue(resolver.called.await(10, TimeUnit.SECONDS));
+
+		// The user registers a new address while the old one is on its way.
+		resolver.addresses.put("alice.vienna.at", "127.0.0.1:1001");
+		cache.invalidate("alice.vienna.at");
+		resolver.release.countDown();
+		assertEquals("127.0.0.1:1000", stale.get(10, TimeUnit.SECONDS).getAddress());
+
+		resolver.release = null;
+		assertEquals("127.0.0.1:1001", cache.resolve("alice.vienna.at").getAddress());
+		assertEquals(2, resolver.calls.get());
+		assertThat(cache.toString(), containsString("Entries: 1 "));
+	}
+
+	/**
+	 * Lookups after an invalidation must not wait for the call that was
+	 * running before it.
+	 */
+	@Test
+	public void doesNotCoalesceWithInvalidatedMiss() throws Exception {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		CountDownLatch release = new CountDownLatch(1);
+		resolver.release = release;
+
+		Future<Resolution> stale = resolveLater(cache, "alice.vienna.at");
+		assertTrue(resolver.called.await(10, TimeUnit.SECONDS));
+		resolver.addresses.put("alice.vienna.at", "127.0.0.1:1001");
+		cache.invalidate("alice.vienna.at");
+
+		resolver.release = null;
+		assertEquals("127.0.0.1:1001", cache.resolve("alice.vienna.at").getAddress());
+		assertFalse(stale.isDone());
+
+		release.countDown();
+		stale.get(10, TimeUnit.SECONDS);
+		assertEquals("127.0.0.1:1001", cache.resolve("alice.vienna.at").getAddress());
+		assertEquals(2, resolver.calls.get());
+	}
+
+	@Test
+	public void reportsEmptyStats() {
+		ResolverCache cache = new ResolverCache(resolver, 60000, 60000, 16);
+		assertThat(cache.toString(), containsString("Hit rate: 0.0%"));
+	}
+}
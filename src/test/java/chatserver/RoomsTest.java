@@ -0,0 +1,232 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import common.DTOOutputStream;
+import dto.JoinDTO;
+import util.Config;
+import util.NullOutputStream;
+
+public class RoomsTest {
+	private static Chatserver server;
+
+	private Rooms rooms;
+	private ExecutorService executor;
+
+	@BeforeClass
+	public static void beforeAll() {
+		server = new Chatserver("chatserver", new Config("chatserver"), new ByteArrayInputStream(new byte[0]),
+				new PrintStream(NullOutputStream.getInstance()));
+	}
+
+	@Before
+	public void setUp() {
+		rooms = new Rooms();
+		executor = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static Session session(String name) {
+		return new Session(server, new User(name, server.getPresence()), null, null, null);
+	}
+
+	@Test
+	public void joinsAndLeaves() {
+		Session alice = session("alice");
+		Session bill = session("bill");
+
+		assertTrue(rooms.join("lobby", alice));
+		assertFalse(rooms.join("lobby", alice));
+		assertTrue(rooms.join("lobby", bill));
+		assertTrue(rooms.join("dev", bill));
+
+		assertEquals(2, rooms.getMembers("lobby").size());
+		assertTrue(rooms.getMembers("dev").contains(bill));
+		assertTrue(rooms.getMembers("nowhere").isEmpty());
+
+		assertTrue(rooms.leave("lobby", alice));
+		assertFalse(rooms.leave("lobby", alice));
+		assertFalse(rooms.leave("nowhere", alice));
+		assertFalse(rooms.getMembers("lobby").contains(alice));
+		assertTrue(rooms.getMembers("lobby").contains(bill));
+	}
+
+	@Test
+	public void dropsEmptyRooms() {
+		Session alice = session("alice");
+		Session bill = session("bill");
+		rooms.join("lobby", alice);
+		rooms.join("lobby", bill);
+		rooms.join("dev", bill);
+
+		SortedMap<String, Integer> sizes = rooms.getSizes();
+		assertEquals(2, sizes.size());
+		assertEquals(Integer.valueOf(2), sizes.get("lobby"));
+		assertEquals(Integer.valueOf(1), sizes.get("dev"));
+
+		rooms.leave("dev", bill);
+		assertFalse(rooms.getSizes().containsKey("dev"));
+		rooms.leave("lobby", alice);
+		rooms.leave("lobby", bill);
+		assertTrue(rooms.getSizes().isEmpty());
+	}
+
+	@Test
+	public void iteratesWhileMembersChange() {
+		Session alice = session("alice");
+		Session bill = session("bill");
+		rooms.join("lobby", alice);
+		rooms.join("lobby", bill);
+
+		int seen = 0;
+		for (Session member : rooms.getMembers("lobby")) {
+			rooms.leave("lobby", member);
+			rooms.join("lobby", session("carol"));
+			seen++;
+		}
+		assertEquals(2, seen);
+		assertEquals(2, rooms.getMembers("lobby").size());
+	}
+
+	/**
+	 * Joining a room while its last member leaves must not lose the join to
+	 * the room being dropped.
+	 */
+	@Test
+	public void keepsJoinRacingWithLastLeave() throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		for (int i = 0; i < 2000; i++) {
+			final Session leaving = session("alice");
+			final Session joining = session("bill");
+			rooms.join("lobby", leaving);
+
+			Future<Boolean> left = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					barrier.await();
+					return rooms.leave("lobby", leaving);
+				}
+			});
+			Future<Boolean> joined = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					barrier.await();
+					return rooms.join("lobby", joining);
+				}
+			});
+
+			assertTrue(left.get(10, TimeUnit.SECONDS));
+			assertTrue(joined.get(10, TimeUnit.SECONDS));
+			assertEquals(1, rooms.getMembers("lobby").size());
+			assertTrue(rooms.getMembers("lobby").contains(joining));
+
+			rooms.leave("lobby", joining);
+			assertTrue(rooms.getSizes().isEmpty());
+		}
+	}
+
+	/**
+	 * A session that is closed while it joins a room, after it noted the room
+	 * but before it got into it, must not stay in the room.
+	 */
+	@Test
+	public void dropsJoinRacingWithClose() throws Exception {
+		final CountDownLatch joining = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final Rooms gated = new Rooms() {
+			@Override
+			public boolean join(String room, Session session) {
+				joining.countDown();
+				try {
+					closed.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.join(room, session);
+			}
+		};
+		Chatserver server = new Chatserver("chatserver", new Config("chatserver"), new ByteArrayInputStream(
+				new byte[0]), new PrintStream(NullOutputStream.getInstance())) {
+			@Override
+			public Rooms getRooms() {
+				return gated;
+			}
+		};
+		final Session session = new Session(server, new User("alice", server.getPresence()), null,
+				new DTOOutputStream(NullOutputStream.getInstance()), new Closeable() {
+					@Override
+					public void close() {
+					}
+				});
+
+		Future<?> joined = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				session.join(new JoinDTO("lobby"));
+				return null;
+			}
+		});
+		assertTrue(joining.await(10, TimeUnit.SECONDS));
+		session.close();
+		closed.countDown();
+		joined.get(10, TimeUnit.SECONDS);
+
+		assertFalse(gated.getMembers("lobby").contains(session));
+		assertTrue(gated.getSizes().isEmpty());
+	}
+
+	@Test
+	public void countsConcurrentMembers() throws Exception {
+		final List<Session> sessions = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			sessions.add(session("user" + i));
+		}
+
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < 2; t++) {
+			final int offset = t;
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = offset; i < sessions.size(); i += 2) {
+						rooms.join("lobby", sessions.get(i));
+						rooms.join("room" + i % 5, sessions.get(i));
+						rooms.leave("room" + i % 5, sessions.get(i));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+
+		assertEquals(1, rooms.getSizes().size());
+		assertEquals(Integer.valueOf(sessions.size()), rooms.getSizes().get("lobby"));
+	}
+}
@@ -0,0 +1,160 @@
+package common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import dto.AddressDTO;
+import dto.JoinDTO;
+import dto.LeaveDTO;
+import dto.LoggedOutDTO;
+import dto.LogoutDTO;
+import dto.LookupDTO;
+import dto.MessageDTO;
+import dto.RegisteredDTO;
+import dto.RoomMessageDTO;
+
+public class BinaryCodecTest {
+	/**
+	 * Encodes the given DTO and decodes the body of its frame.
+	 */
+	private static Object roundTrip(Object o) throws IOException {
+		byte[] frame = BinaryCodec.encode(o);
+		int length = BinaryCodec.frameLength(frame, 0, frame.length);
+		assertEquals(frame.length, length);
+		int prefix = 1;
+		while ((frame[prefix - 1] & 0x80) != 0) {
+			prefix++;
+		}
+		return BinaryCodec.decode(frame, prefix, frame.length - prefix);
+	}
+
+	@Test
+	public void roundTripsAllTypes() throws IOException {
+		assertNull(roundTrip(null));
+		assertEquals("hello", ((MessageDTO) roundTrip(new MessageDTO("hello"))).getMessage());
+		assertEquals("bill.de", ((LookupDTO) roundTrip(new LookupDTO("bill.de"))).getUsername());
+		assertEquals("127.0.0.1:1234", ((AddressDTO) roundTrip(new AddressDTO("127.0.0.1:1234"))).getAddress());
+		assertTrue(roundTrip(new RegisteredDTO()) instanceof RegisteredDTO);
+		assertTrue(roundTrip(new LogoutDTO()) instanceof LogoutDTO);
+		assertTrue(roundTrip(new LoggedOutDTO()) instanceof LoggedOutDTO);
+		assertEquals("lobby", ((JoinDTO) roundTrip(new JoinDTO("lobby"))).getRoom());
+		assertEquals("lobby", ((LeaveDTO) roundTrip(new LeaveDTO("lobby"))).getRoom());
+
+		RoomMessageDTO message = (RoomMessageDTO) roundTrip(new RoomMessageDTO("lobby", "hi all"));
+		assertEquals("lobby", message.getRoom());
+		assertEquals("hi all", message.getMessage());
+	}
+
+	@Test
+	public void keepsNullAndEmptyStringsApart() throws IOException {
+		assertNull(((MessageDTO) roundTrip(new MessageDTO(null))).getMessage());
+		assertEquals("", ((MessageDTO) roundTrip(new MessageDTO(""))).getMessage());
+	}
+
+	@Test
+	public void encodesUnicode() throws IOException {
+		String s = "Gr\u00fc\u00dfe, \u4f60\u597d \ud83d\ude00";
+		assertEquals(s, ((MessageDTO) roundTrip(new MessageDTO(s))).getMessage());
+	}
+
+	@Test
+	public void encodesLongStrings() throws IOException {
+		char[] c = new char[100000];
+		Arrays.fill(c, 'x');
+		String s = new String(c);
+		assertEquals(s, ((MessageDTO) roundTrip(new MessageDTO(s))).getMessage());
+	}
+
+	@Test(expected = NotSerializableException.class)
+	public void refusesUnknownTypes() throws IOException {
+		BinaryCodec.encode("not a DTO");
+	}
+
+	@Test
+	public void waitsForCompleteFrame() throws IOException {
+		byte[] frame = BinaryCodec.encode(new MessageDTO("hello"));
+		for (int len = 0; len < frame.length; len++) {
+			assertEquals(-1, BinaryCodec.frameLength(frame, 0, len));
+		}
+		assertEquals(frame.length, BinaryCodec.frameLength(frame, 0, frame.length + 10));
+	}
+
+	@Test
+	public void writesVarints() {
+		byte[] b = new byte[5];
+		for (int value : new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE }) {
+			int n = BinaryCodec.writeVarint(b, 0, value);
+			assertEquals(BinaryCodec.varintLength(value), n);
+		}
+		assertArrayEquals(new byte[] { (byte) 0xac, 0x02 }, Arrays.copyOf(b, BinaryCodec.writeVarint(b, 0, 300)));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesOversizedFrame() throws IOException {
+		byte[] b = new byte[5];
+		int n = BinaryCodec.writeVarint(b, 0, BinaryCodec.MAX_FRAME_LENGTH + 1);
+		BinaryCodec.frameLength(b, 0, n);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesOverlongLength() throws IOException {
+		byte[] b = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 };
+		BinaryCodec.frameLength(b, 0, b.length);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesUnknownTag() throws IOException {
+		BinaryCodec.decode(new byte[] { 42 }, 0, 1);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesEmptyBody() throws IOException {
+		BinaryCodec.decode(new byte[0], 0, 0);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesTrailingBytes() throws IOException {
+		byte[] frame = BinaryCodec.encode(new LogoutDTO());
+		byte[] body = Arrays.copyOfRange(frame, 1, frame.length + 1);
+		BinaryCodec.decode(body, 0, body.length);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesTruncatedString() throws IOException {
+		byte[] frame = BinaryCodec.encode(new MessageDTO("hello"));
+		BinaryCodec.decode(frame, 1, frame.length - 2);
+	}
+
+	@Test
+	public void streamsRoundTrip() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DTOOutputStream out = new DTOOutputStream(bytes);
+		out.writeObject(new MessageDTO("first"));
+		out.writeObject(null);
+		out.writeObject(new RoomMessageDTO("lobby", "second"));
+		out.flush();
+
+		DTOInputStream in = new DTOInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals("first", ((MessageDTO) in.readObject()).getMessage());
+		assertNull(in.readObject());
+		assertEquals("second", ((RoomMessageDTO) in.readObject()).getMessage());
+		try {
+			in.readObject();
+			fail();
+		} catch (EOFException expected) {
+		}
+	}
+}
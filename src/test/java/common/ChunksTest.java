@@ -0,0 +1,159 @@
+package common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChunksTest {
+	private static byte[] reply(int length) {
+		byte[] b = new byte[length];
+		new Random(length).nextBytes(b);
+		return b;
+	}
+
+	private static byte[] datagram(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void sendsShortReplyAsIs() {
+		byte[] reply = reply(100);
+		byte[][] chunks = Chunks.split(reply, Chunks.MAX_DATAGRAM);
+		assertEquals(1, chunks.length);
+		assertArrayEquals(reply, chunks[0]);
+
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		assertTrue(assembler.add(chunks[0], 0, chunks[0].length));
+		assertArrayEquals(reply, assembler.get());
+	}
+
+	@Test
+	public void splitsLongReply() {
+		byte[] reply = reply(10000);
+		byte[][] chunks = Chunks.split(reply, Chunks.MAX_DATAGRAM);
+		assertTrue(chunks.length > 1);
+		for (byte[] chunk : chunks) {
+			assertTrue(chunk.length <= Chunks.MAX_DATAGRAM);
+		}
+
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		for (int i = 0; i < chunks.length - 1; i++) {
+			assertFalse(assembler.add(chunks[i], 0, chunks[i].length));
+			assertNull(assembler.get());
+		}
+		assertTrue(assembler.add(chunks[chunks.length - 1], 0, chunks[chunks.length - 1].length));
+		assertArrayEquals(reply, assembler.get());
+	}
+
+	@Test
+	public void splitsIntoManySmallChunks() {
+		// Enough chunks for the headers to grow by a digit along the way.
+		byte[] reply = reply(5000);
+		byte[][] chunks = Chunks.split(reply, 30);
+		assertTrue(chunks.length > 100);
+		for (byte[] chunk : chunks) {
+			assertTrue(chunk.length <= 30);
+		}
+
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		for (byte[] chunk : chunks) {
+			assembler.add(chunk, 0, chunk.length);
+		}
+		assertArrayEquals(reply, assembler.get());
+	}
+
+	@Test
+	public void assemblesOutOfOrderWithDuplicates() {
+		byte[] reply = reply(5000);
+		byte[][] chunks = Chunks.split(reply, 1000);
+		assertTrue(chunks.length > 3);
+
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		for (int i = chunks.length - 1; i > 0; i--) {
+			assertFalse(assembler.add(chunks[i], 0, chunks[i].length));
+			assertFalse(assembler.add(chunks[i], 0, chunks[i].length));
+		}
+		assertTrue(assembler.add(chunks[0], 0, chunks[0].length));
+		assertArrayEquals(reply, assembler.get());
+	}
+
+	@Test
+	public void readsChunkAtOffset() {
+		byte[] reply = reply(3000);
+		byte[][] chunks = Chunks.split(reply, 1000);
+
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		for (byte[] chunk : chunks) {
+			byte[] padded = new byte[chunk.length + 20];
+			System.arraycopy(chunk, 0, padded, 10, chunk.length);
+			assembler.add(padded, 10, chunk.length);
+		}
+		assertArrayEquals(reply, assembler.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesTooSmallDatagrams() {
+		Chunks.split(reply(100), 10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesTooManyChunks() {
+		byte[] chunk = datagram("!chunk 0 " + (Chunks.MAX_CHUNKS + 1) + "\nx");
+		new Chunks.Assembler().add(chunk, 0, chunk.length);
+	}
+
+	@Test
+	public void acceptsMostChunks() {
+		byte[] chunk = datagram("!chunk 0 " + Chunks.MAX_CHUNKS + "\nx");
+		assertFalse(new Chunks.Assembler().add(chunk, 0, chunk.length));
+	}
+
+	@Test
+	public void boundsChunksOfLongestReply() {
+		byte[][] chunks = Chunks.split(reply(Chunks.MAX_REPLY), Chunks.MAX_DATAGRAM);
+		assertTrue(chunks.length <= Chunks.MAX_CHUNKS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesZeroChunks() {
+		byte[] chunk = datagram("!chunk 0 0\nx");
+		new Chunks.Assembler().add(chunk, 0, chunk.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesChunkOfOtherReply() {
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		byte[] first = datagram("!chunk 0 3\nx");
+		assembler.add(first, 0, first.length);
+		byte[] other = datagram("!chunk 1 4\nx");
+		assembler.add(other, 0, other.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesSequenceOutOfRange() {
+		byte[] chunk = datagram("!chunk 3 3\nx");
+		new Chunks.Assembler().add(chunk, 0, chunk.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesMalformedHeader() {
+		byte[] chunk = datagram("!chunk one 3\nx");
+		new Chunks.Assembler().add(chunk, 0, chunk.length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesPlainReplyAmongChunks() {
+		Chunks.Assembler assembler = new Chunks.Assembler();
+		byte[] first = datagram("!chunk 0 2\nx");
+		assembler.add(first, 0, first.length);
+		byte[] plain = datagram("plain");
+		assembler.add(plain, 0, plain.length);
+	}
+}
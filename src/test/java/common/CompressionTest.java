@@ -0,0 +1,210 @@
+package common;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionTest {
+	private Compression.Stats stats;
+
+	@Before
+	public void setUp() {
+		stats = new Compression.Stats();
+	}
+
+	private static byte[] text(int length) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			sb.append("alice.vienna.at: hello everybody in the lobby! ");
+		}
+		return sb.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] random(int length) {
+		byte[] b = new byte[length];
+		new Random(length).nextBytes(b);
+		return b;
+	}
+
+	private byte[] compress(Compression.Compressor compressor, byte[] payload) throws IOException {
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		compressor.compress(payload, 0, payload.length, block);
+		return block.toByteArray();
+	}
+
+	private byte[] decompress(Compression.Decompressor decompressor, byte[] block) throws IOException {
+		assertEquals(block.length, Compression.blockLength(block, 0, block.length));
+		byte[] out = new byte[Compression.contentLength(block, 0, block.length)];
+		assertEquals(out.length, decompressor.decompress(block, 0, block.length, out, 0));
+		return out;
+	}
+
+	@Test
+	public void sendsShortPayloadRaw() throws IOException {
+		Compression.Compressor compressor = new Compression.Compressor(64, stats);
+		byte[] payload = text(10);
+		byte[] block = compress(compressor, payload);
+		assertEquals(1 + payload.length, block.length);
+		assertArrayEquals(payload, decompress(new Compression.Decompressor(stats), block));
+	}
+
+	@Test
+	public void compressesRepetitiveText() throws IOException {
+		Compression.Compressor compressor = new Compression.Compressor(64, stats);
+		Compression.Decompressor decompressor = new Compression.Decompressor(stats);
+		byte[] payload = text(4000);
+		byte[] block = compress(compressor, payload);
+		assertTrue(block.length < payload.length / 4);
+		assertArrayEquals(payload, decompress(decompressor, block));
+		assertThat(stats.toString(), containsString("Compressed 1 of 1 messages sent"));
+		assertThat(stats.toString(), containsString("Decompressed 1 messages received"));
+	}
+
+	@Test
+	public void sharesWindowBetweenBlocks() throws IOException {
+		Compression.Compressor compressor = new Compression.Compressor(0, stats);
+		Compression.Decompressor decompressor = new Compression.Decompressor(stats);
+		byte[] payload = random(1000);
+		byte[] first = compress(compressor, payload);
+		byte[] second = compress(compressor, payload);
+
+		// The second block refers back to the first.
+		assertTrue(second.length < first.length / 4);
+		assertArrayEquals(payload, decompress(decompressor, first));
+		assertArrayEquals(payload, decompress(decompressor, second));
+	}
+
+	@Test
+	public void waitsForCompleteBlock() throws IOException {
+		byte[] block = compress(new Compression.Compressor(0, stats), text(1000));
+		for (int len = 0; len < block.length; len++) {
+			assertEquals(-1, Compression.blockLength(block, 0, len));
+		}
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesOversizedBlock() throws IOException {
+		byte[] header = new byte[5];
+		int n = BinaryCodec.writeVarint(header, 0, (Compression.MAX_BLOCK_LENGTH + 1) << 1);
+		Compression.blockLength(header, 0, n);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesOversizedContent() throws IOException {
+		byte[] header = new byte[10];
+		int n = BinaryCodec.writeVarint(header, 0, 10 << 1 | 1);
+		n = BinaryCodec.writeVarint(header, n, Compression.MAX_BLOCK_LENGTH + 1);
+		Compression.blockLength(header, 0, n);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void refusesCorruptBlock() throws IOException {
+		byte[] block = compress(new Compression.Compressor(0, stats), text(1000));
+		for (int i = 3; i < block.length; i++) {
+			block[i] = (byte) 0xff;
+		}
+		decompress(new Compression.Decompressor(stats), block);
+	}
+
+	@Test
+	public void refusesUseAfterClose() throws IOException {
+		Compression.Compressor compressor = new Compression.Compressor(0, stats);
+		Compression.Decompressor decompressor = new Compression.Decompressor(stats);
+		byte[] block = compress(compressor, text(100));
+
+		compressor.close();
+		decompressor.close();
+		// Closing twice does no harm.
+		compressor.close();
+		decompressor.close();
+
+		try {
+			compress(compressor, text(100));
+			fail();
+		} catch (IOException expected) {
+		}
+		try {
+			decompress(decompressor, block);
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void streamsRoundTrip() throws IOException {
+		byte[][] messages = { text(10), text(5000), random(3000), new byte[0], text(100) };
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompressedOutputStream out = new CompressedOutputStream(bytes, new Compression.Compressor(64, stats));
+		for (byte[] message : messages) {
+			out.write(message);
+			out.flush();
+		}
+		out.close();
+
+		InputStream in = new CompressedInputStream(new ByteArrayInputStream(bytes.toByteArray()),
+				new Compression.Decompressor(stats));
+		for (byte[] message : messages) {
+			byte[] read = new byte[message.length];
+			int n = 0;
+			while (n < read.length) {
+				int r = in.read(read, n, read.length - n);
+				assertTrue(r > 0);
+				n += r;
+			}
+			assertArrayEquals(message, read);
+		}
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	@Test
+	public void streamSplitsLongWrites() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompressedOutputStream out = new CompressedOutputStream(bytes, new Compression.Compressor(64, stats));
+		byte[] message = text(Compression.MAX_BLOCK_LENGTH / 2 + 100);
+		out.write(message);
+		out.write(message);
+		out.flush();
+
+		InputStream in = new CompressedInputStream(new ByteArrayInputStream(bytes.toByteArray()),
+				new Compression.Decompressor(stats));
+		byte[] read = new byte[2 * message.length];
+		int n = 0;
+		while (n < read.length) {
+			n += in.read(read, n, read.length - n);
+		}
+		assertArrayEquals(message, Arrays.copyOf(read, message.length));
+		assertArrayEquals(message, Arrays.copyOfRange(read, message.length, read.length));
+		assertThat(stats.toString(), containsString("of 2 messages sent"));
+	}
+
+	@Test(expected = EOFException.class)
+	public void streamRefusesTruncatedBlock() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompressedOutputStream out = new CompressedOutputStream(bytes, new Compression.Compressor(64, stats));
+		out.write(text(1000));
+		out.flush();
+
+		byte[] blocks = bytes.toByteArray();
+		InputStream in = new CompressedInputStream(new ByteArrayInputStream(Arrays.copyOf(blocks,
+				blocks.length - 1)), new Compression.Decompressor(stats));
+		in.read();
+	}
+}
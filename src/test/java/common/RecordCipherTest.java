@@ -0,0 +1,175 @@
+package common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import util.SecurityUtils;
+
+public class RecordCipherTest {
+	private byte[] sessionKey;
+
+	@BeforeClass
+	public static void beforeAll() {
+		SecurityUtils.registerBouncyCastle();
+	}
+
+	@Before
+	public void setUp() {
+		sessionKey = new byte[32];
+		new Random(42).nextBytes(sessionKey);
+	}
+
+	private byte[] seal(RecordCipher sealer, byte[] plaintext) throws GeneralSecurityException {
+		byte[] record = new byte[plaintext.length + RecordCipher.HEADER_LENGTH + RecordCipher.TAG_LENGTH];
+		assertEquals(record.length, sealer.seal(plaintext, 0, plaintext.length, record, 0));
+		return record;
+	}
+
+	private byte[] open(RecordCipher opener, byte[] record) throws GeneralSecurityException {
+		assertEquals(record.length, RecordCipher.recordLength(record, 0, record.length));
+		byte[] out = new byte[RecordCipher.MAX_PLAINTEXT_LENGTH];
+		return Arrays.copyOf(out, opener.open(record, 0, record.length, out, 0));
+	}
+
+	@Test
+	public void opensSealedRecords() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		RecordCipher opener = new RecordCipher(Cipher.DECRYPT_MODE, sessionKey, true);
+		for (int length : new int[] { 0, 1, 100, RecordCipher.MAX_PLAINTEXT_LENGTH }) {
+			byte[] plaintext = new byte[length];
+			new Random(length).nextBytes(plaintext);
+			assertArrayEquals(plaintext, open(opener, seal(sealer, plaintext)));
+		}
+	}
+
+	@Test
+	public void variesNonceBetweenRecords() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		byte[] plaintext = "same message".getBytes();
+		assertFalse(Arrays.equals(seal(sealer, plaintext), seal(sealer, plaintext)));
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void refusesTamperedRecord() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		RecordCipher opener = new RecordCipher(Cipher.DECRYPT_MODE, sessionKey, true);
+		byte[] record = seal(sealer, "hello".getBytes());
+		record[RecordCipher.HEADER_LENGTH] ^= 1;
+		open(opener, record);
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void refusesReorderedRecords() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		RecordCipher opener = new RecordCipher(Cipher.DECRYPT_MODE, sessionKey, true);
+		seal(sealer, "first".getBytes());
+		open(opener, seal(sealer, "second".getBytes()));
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void refusesReplayedRecord() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		RecordCipher opener = new RecordCipher(Cipher.DECRYPT_MODE, sessionKey, true);
+		byte[] record = seal(sealer, "hello".getBytes());
+		open(opener, record);
+		open(opener, record);
+	}
+
+	@Test(expected = AEADBadTagException.class)
+	public void separatesDirections() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		RecordCipher opener = new RecordCipher(Cipher.DECRYPT_MODE, sessionKey, false);
+		open(opener, seal(sealer, "hello".getBytes()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesLongPlaintext() throws GeneralSecurityException {
+		RecordCipher sealer = new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey, true);
+		seal(sealer, new byte[RecordCipher.MAX_PLAINTEXT_LENGTH + 1]);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesWrongMode() throws GeneralSecurityException {
+		RecordCipher opener = new RecordCipher(Cipher.DECRYPT_MODE, sessionKey, true);
+		seal(opener, "hello".getBytes());
+	}
+
+	@Test
+	public void checksHeaders() {
+		byte[] record = new byte[] { 0, 3, 1, 2, 3, 4 };
+		assertEquals(-1, RecordCipher.recordLength(record, 0, 1));
+		assertEquals(-1, RecordCipher.recordLength(record, 0, 4));
+		assertEquals(5, RecordCipher.recordLength(record, 0, 6));
+		assertFalse(RecordCipher.isValidHeader(record, 0));
+		assertTrue(RecordCipher.isValidHeader(new byte[] { 0, RecordCipher.TAG_LENGTH }, 0));
+		int max = RecordCipher.MAX_PLAINTEXT_LENGTH + RecordCipher.TAG_LENGTH;
+		assertTrue(RecordCipher.isValidHeader(new byte[] { (byte) (max >>> 8), (byte) max }, 0));
+		assertFalse(RecordCipher.isValidHeader(new byte[] { (byte) (max + 1 >>> 8), (byte) (max + 1) }, 0));
+	}
+
+	@Test
+	public void streamsRoundTrip() throws GeneralSecurityException, IOException {
+		byte[] message = new byte[3 * RecordCipher.MAX_PLAINTEXT_LENGTH + 100];
+		new Random(7).nextBytes(message);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordOutputStream out = new RecordOutputStream(bytes, new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey,
+				false));
+		out.write(message, 0, 1000);
+		out.flush();
+		for (int i = 1000; i < message.length; i++) {
+			out.write(message[i]);
+		}
+		out.flush();
+
+		InputStream in = new RecordInputStream(new ByteArrayInputStream(bytes.toByteArray()), new RecordCipher(
+				Cipher.DECRYPT_MODE, sessionKey, false));
+		byte[] read = new byte[message.length];
+		int n = 0;
+		while (n < read.length) {
+			int r = in.read(read, n, read.length - n);
+			assertTrue(r > 0);
+			n += r;
+		}
+		assertArrayEquals(message, read);
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void streamRefusesTamperedRecord() throws GeneralSecurityException, IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordOutputStream out = new RecordOutputStream(bytes, new RecordCipher(Cipher.ENCRYPT_MODE, sessionKey,
+				false));
+		out.write("hello".getBytes());
+		out.flush();
+
+		byte[] records = bytes.toByteArray();
+		records[records.length - 1] ^= 1;
+		InputStream in = new RecordInputStream(new ByteArrayInputStream(records), new RecordCipher(
+				Cipher.DECRYPT_MODE, sessionKey, false));
+		try {
+			in.read();
+			fail();
+		} catch (StreamCorruptedException expected) {
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package nameserver;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+	private Journal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = new File(folder.getRoot(), "journal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Opens the journal in our directory, recovering into fresh maps.
+	 */
+	private ConcurrentMap<String, String> reopen(int interval) throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		ConcurrentMap<String, String> users = new ConcurrentHashMap<>();
+		journal = new Journal(dir, interval, users, new ConcurrentHashMap<String, INameserver>());
+		journal.recover();
+		return users;
+	}
+
+	/**
+	 * Registers a user the way the nameserver does.
+	 */
+	private void register(ConcurrentMap<String, String> users, String name, String address) throws IOException {
+		users.put(name, address);
+		journal.user(name, address);
+	}
+
+	@Test
+	public void recoversAppendedUsers() throws IOException {
+		assertTrue(reopen(1000).isEmpty());
+		journal.user("alice", "127.0.0.1:1000");
+		journal.user("bill", "127.0.0.1:2000");
+		journal.user("alice", "127.0.0.1:3000");
+
+		Map<String, String> users = reopen(1000);
+		assertEquals(2, users.size());
+		assertEquals("127.0.0.1:3000", users.get("alice"));
+		assertEquals("127.0.0.1:2000", users.get("bill"));
+		assertThat(journal.toString(), containsString("Recovered 3 log records"));
+	}
+
+	@Test
+	public void truncatesTornRecord() throws IOException {
+		reopen(1000);
+		journal.user("alice", "127.0.0.1:1000");
+		journal.user("bill", "127.0.0.1:2000");
+		journal.close();
+		journal = null;
+
+		File log = new File(dir, "log.0");
+		long valid = log.length();
+
+		// A crash in the middle of the next record leaves its header and
+		// part of its payload.
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log, true))) {
+			out.writeInt(100);
+			out.writeInt(0x12345678);
+			out.write(new byte[10]);
+		}
+
+		Map<String, String> users = reopen(1000);
+		assertEquals(2, users.size());
+		assertEquals(valid, log.length());
+
+		// Records appended after recovery must not end up behind the torn
+		// one.
+		journal.user("carol", "127.0.0.1:3000");
+		users = reopen(1000);
+		assertEquals(3, users.size());
+		assertEquals("127.0.0.1:3000", users.get("carol"));
+	}
+
+	@Test
+	public void ignoresCorruptRecord() throws IOException {
+		reopen(1000);
+		journal.user("alice", "127.0.0.1:1000");
+		journal.close();
+		journal = null;
+
+		File log = new File(dir, "log.0");
+		long valid = log.length();
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log, true))) {
+			out.writeInt(4);
+			out.writeInt(0);
+			out.write(new byte[] { 1, 2, 3, 4 });
+		}
+
+		Map<String, String> users = reopen(1000);
+		assertEquals(1, users.size());
+		assertEquals(valid, log.length());
+	}
+
+	@Test
+	public void snapshotSwitchesGeneration() throws IOException {
+		ConcurrentMap<String, String> users = reopen(1000);
+		register(users, "alice", "127.0.0.1:1000");
+		register(users, "bill", "127.0.0.1:2000");
+
+		journal.snapshot();
+		assertFalse(new File(dir, "log.0").exists());
+		assertTrue(new File(dir, "log.1").exists());
+		assertTrue(new File(dir, "snapshot").exists());
+
+		String stats = journal.toString();
+		assertThat(stats, containsString("Generation: 1, 0 records since the last snapshot"));
+		assertThat(stats, containsString("Snapshots: 1, the last with 2 entries"));
+
+		register(users, "carol", "127.0.0.1:3000");
+
+		users = reopen(1000);
+		assertEquals(3, users.size());
+		assertEquals("127.0.0.1:1000", users.get("alice"));
+		assertEquals("127.0.0.1:3000", users.get("carol"));
+
+		stats = journal.toString();
+		assertThat(stats, containsString("Generation: 1, 1 records since the last snapshot"));
+		assertThat(stats, containsString("Snapshots: 0, the last with 2 entries"));
+		assertThat(stats, containsString("Recovered 1 log records"));
+	}
+
+	@Test
+	public void takesSnapshotAfterInterval() throws Exception {
+		ConcurrentMap<String, String> users = reopen(3);
+		for (int i = 0; i < 3; i++) {
+			register(users, "user" + i, "127.0.0.1:" + i);
+		}
+
+		// The snapshot is taken in the background.
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!journal.toString().contains("Snapshots: 1") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(journal.toString(), containsString("Snapshots: 1, the last with 3 entries"));
+
+		assertEquals(3, reopen(3).size());
+	}
+
+	@Test
+	public void forcesBatchOnce() throws IOException {
+		reopen(1000);
+		Map<String, String> batch = new LinkedHashMap<>();
+		for (int i = 0; i < 100; i++) {
+			batch.put("user" + i, "127.0.0.1:" + i);
+		}
+		journal.users(batch);
+		assertThat(journal.toString(), containsString("Records appended: 100, forced in 1 syncs"));
+
+		assertEquals(batch, reopen(1000));
+	}
+
+	@Test
+	public void recoversConcurrentAppends() throws Exception {
+		reopen(1000);
+		final int threads = 8;
+		final int each = 50;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Future<?>[] futures = new Future<?>[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures[t] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < each; i++) {
+							journal.user("user" + thread + "." + i, "127.0.0.1:" + i);
+						}
+						return null;
+					}
+				});
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertThat(journal.toString(), containsString("Records appended: " + threads * each + ","));
+		assertEquals(threads * each, reopen(1000).size());
+	}
+
+	@Test
+	public void refusesAppendsWhenClosed() throws IOException {
+		reopen(1000);
+		journal.close();
+		try {
+			journal.user("alice", "127.0.0.1:1000");
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+}